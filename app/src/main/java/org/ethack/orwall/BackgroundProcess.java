@@ -3,17 +3,18 @@ package org.ethack.orwall;
 import android.app.IntentService;
 import android.content.Intent;
 
+import org.ethack.orwall.lib.AppRule;
 import org.ethack.orwall.lib.Constants;
-import org.ethack.orwall.lib.Iptables;
-import org.ethack.orwall.lib.Util;
+import org.ethack.orwall.lib.FirewallExecutor;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 /**
  * Allows to run background commands in order to avoid any blocking stuff in main thread.
+ * Firewall changes are handed to the FirewallExecutor, which serializes and coalesces them.
  */
 public class BackgroundProcess extends IntentService {
 
-    private Iptables iptables;
+    private FirewallExecutor executor;
 
     public BackgroundProcess() {
         super("BackgroundProcess");
@@ -21,7 +22,7 @@ public class BackgroundProcess extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent workIntent) {
-        this.iptables = new Iptables(this);
+        this.executor = FirewallExecutor.get(this);
 
         String action = workIntent.getStringExtra(Constants.ACTION);
 
@@ -46,12 +47,22 @@ public class BackgroundProcess extends IntentService {
                 Boolean localNetwork = workIntent.getBooleanExtra(Constants.PARAM_LOCALNETWORK, false);
                 rmRule(appUID, appName, onionType, localHost, localNetwork);
 
+            } else if (action.equals(Constants.ACTION_UPDATE_RULE)) {
+                long appUID = workIntent.getLongExtra(Constants.PARAM_APPUID, 0);
+                String appName = workIntent.getStringExtra(Constants.PARAM_APPNAME);
+                String onionType = workIntent.getStringExtra(Constants.PARAM_ONIONTYPE);
+                Boolean localHost = workIntent.getBooleanExtra(Constants.PARAM_LOCALHOST, false);
+                Boolean localNetwork = workIntent.getBooleanExtra(Constants.PARAM_LOCALNETWORK, false);
+                updateRule(appUID, appName, onionType, localHost, localNetwork);
+
+            } else if (action.equals(Constants.ACTION_RECONCILE_RULES)) {
+                executor.reconcileApps();
+
             } else if (action.equals(Constants.ACTION_DISABLE_ORWALL)) {
-                iptables.deactivate();
-                iptables.deactivateV6();
-                
+                executor.deactivate();
+
             } else if (action.equals(Constants.ACTION_ENABLE_ORWALL)) {
-                iptables.boot();
+                executor.boot();
             } else {
                 Log.e("BackgroundProcess", "Just got an unknown action!");
             }
@@ -64,38 +75,20 @@ public class BackgroundProcess extends IntentService {
         //Util.enableCaptiveDetection(activate, this);
     }
 
+    /*
+     * App rules are compiled from NatRules as a whole, as UIDs sharing a policy may share rules:
+     * each change is a reconciliation of the whole app ruleset, applying only what differs.
+     */
     private void addRule(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
+        updateRule(appUID, appName, onionType, localHost, localNetwork);
+    }
 
-        if (onionType.equals(Constants.DB_ONION_TYPE_TOR)) {
-            iptables.natApp(this, appUID, 'A', appName);
-        } else
-        if (onionType.equals(Constants.DB_ONION_TYPE_BYPASS)) {
-            iptables.bypass(appUID, appName, true);
-        }
-
-        if (localHost) {
-            iptables.localHost(appUID, appName, true);
-        }
-
-        if (localNetwork) {
-            iptables.localNetwork(appUID, appName, true);
-        }
+    private void updateRule(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
+        AppRule rule = new AppRule(true, appName, appUID, onionType, localHost, localNetwork);
+        executor.reconcileApp(appUID, rule);
     }
 
     private void rmRule(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
-        if (onionType.equals(Constants.DB_ONION_TYPE_TOR)) {
-            iptables.natApp(this, appUID, 'D', appName);
-        } else
-        if (onionType.equals(Constants.DB_ONION_TYPE_BYPASS)) {
-            iptables.bypass(appUID, appName, false);
-        }
-
-        if (localHost) {
-            iptables.localHost(appUID, appName, false);
-        }
-
-        if (localNetwork) {
-            iptables.localNetwork(appUID, appName, false);
-        }
+        executor.reconcileApp(appUID, null);
     }
 }
@@ -4,6 +4,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import org.ethack.orwall.lib.FirewallExecutor;
 import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.Preferences;
 
@@ -17,8 +18,6 @@ public class BootBroadcast extends BroadcastReceiver {
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
-        Iptables iptables = new Iptables(context);
-
         // Enforce init-script if sharedpreference says it
         // We want to do it the earlier.
         // Also, we want to get a fresh status regarding the init-script support: this can be
@@ -29,8 +28,15 @@ public class BootBroadcast extends BroadcastReceiver {
         }
         // Apply boot-up rules in order to enable traffic for orbot and other things.
 
+        // Keep the receiver alive until rules are in place.
         if (Preferences.isOrwallEnabled(context)){
-            iptables.boot();
+            final PendingResult result = goAsync();
+            FirewallExecutor.get(context).boot(new Runnable() {
+                @Override
+                public void run() {
+                    result.finish();
+                }
+            });
         }
     }
 }
@@ -0,0 +1,73 @@
+package org.ethack.orwall;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.lib.FirewallExecutor;
+import org.ethack.orwall.lib.Preferences;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic rules check: installed rules are compared with the expected ones, and repaired if
+ * something else changed them (another firewall, netd, a crash in the middle of an update...).
+ * Missing, unexpected and duplicated rules are caught; rules reordered within a chain aren't, see
+ * Iptables.reconcileDrift().
+ *
+ * Checks use an inexact alarm, so that Android may batch them with other wakeups; they only wake
+ * the device up if the user asked for it.
+ */
+public class DriftCheckReceiver extends BroadcastReceiver {
+    private final static String TAG = "DriftCheckReceiver";
+
+    public DriftCheckReceiver() {
+    }
+
+    /**
+     * Start periodic checks, or update their schedule, according to preferences
+     */
+    public static void schedule(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pending = getPendingIntent(context);
+        alarmManager.cancel(pending);
+
+        long interval = TimeUnit.MINUTES.toMillis(Preferences.getDriftInterval(context));
+        if (interval <= 0 || !Preferences.isOrwallEnabled(context)) {
+            Log.d(TAG, "Rules checks are disabled");
+            return;
+        }
+        int type = (Preferences.isDriftWakeup(context) ? AlarmManager.ELAPSED_REALTIME_WAKEUP : AlarmManager.ELAPSED_REALTIME);
+        alarmManager.setInexactRepeating(type, SystemClock.elapsedRealtime() + interval, interval, pending);
+    }
+
+    public static void cancel(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getPendingIntent(context));
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        Intent intent = new Intent(context, DriftCheckReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Preferences.isOrwallEnabled(context)) {
+            cancel(context);
+            return;
+        }
+
+        final PendingResult result = goAsync();
+        FirewallExecutor.get(context).checkDrift(new Runnable() {
+            @Override
+            public void run() {
+                result.finish();
+            }
+        });
+    }
+}
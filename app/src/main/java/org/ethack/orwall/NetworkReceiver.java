@@ -9,7 +9,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
-import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.FirewallExecutor;
 import org.ethack.orwall.lib.NetworkHelper;
 import org.ethack.orwall.lib.Preferences;
 
@@ -32,7 +32,7 @@ public class NetworkReceiver extends BroadcastReceiver {
 
         Log.d(TAG, "Got a Network Change event: " + action);
 
-        Iptables iptables = new Iptables(context);
+        FirewallExecutor executor = FirewallExecutor.get(context);
 
         if (action.equals(ACTION_TETHER_STATE_CHANGED)){
             // try the faster way
@@ -48,13 +48,13 @@ public class NetworkReceiver extends BroadcastReceiver {
             Set<String> oldIntfs = Preferences.getTetherInterfaces(context);
 
             if (!set.equals(oldIntfs))
-                iptables.tetherUpdate(context, oldIntfs, set);
+                executor.tether(set);
         }
         else
         if (action.equals("android.net.wifi.WIFI_STATE_CHANGED") || action.equals("android.net.conn.CONNECTIVITY_CHANGE")) {
             Log.d(TAG, "Will do some LAN stuff");
 
-            iptables.LANPolicy();
+            executor.LANPolicy();
         }
     }
 }
@@ -9,7 +9,7 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 
 import org.ethack.orwall.lib.Constants;
-import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.FirewallExecutor;
 import org.ethack.orwall.lib.Preferences;
 
 import java.util.Arrays;
@@ -78,14 +78,22 @@ public class PreferencesActivity extends PreferenceActivity {
 
                 if (!sharedPreferences.getBoolean(Preferences.PREF_KEY_ORWALL_ENABLED, true)) return;
 
-                Iptables iptables = new Iptables(getActivity());
+                FirewallExecutor executor = FirewallExecutor.get(getActivity());
 
                 switch (s) {
                     case Preferences.PREF_KEY_ADB_ENABLED:
-                        iptables.enableADB(sharedPreferences.getBoolean(s, false));
+                        executor.enableADB(sharedPreferences.getBoolean(s, false));
                         break;
                     case Preferences.PREF_KEY_SSH_ENABLED:
-                        iptables.enableSSH(sharedPreferences.getBoolean(s, false));
+                        executor.enableSSH(sharedPreferences.getBoolean(s, false));
+                        break;
+                    case Preferences.PREF_KEY_DRIFT_INTERVAL:
+                    case Preferences.PREF_KEY_DRIFT_WAKEUP:
+                        DriftCheckReceiver.schedule(getActivity());
+                        break;
+                    case Preferences.PREF_KEY_MARK_MODE:
+                        // rules layout changes: reload everything
+                        executor.reload();
                         break;
                     case "enable_captive_portal":
                         Context context = getActivity();
@@ -119,11 +127,39 @@ public class PreferencesActivity extends PreferenceActivity {
     }
 
     public static class ProxyPorts extends PreferenceFragment {
+        private SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
+
+                if (!sharedPreferences.getBoolean(Preferences.PREF_KEY_ORWALL_ENABLED, true)) return;
+
+                switch (s) {
+                    case Preferences.PREF_TRANS_PORT:
+                    case Preferences.PREF_DNS_PORT:
+                        // only rules referencing ports are rewritten
+                        FirewallExecutor.get(getActivity()).updatePorts();
+                        break;
+                }
+            }
+        };
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.fragment_proxy_ports);
         }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            getPreferenceScreen().getSharedPreferences().registerOnSharedPreferenceChangeListener(listener);
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+            getPreferenceScreen().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(listener);
+        }
     }
 
 }
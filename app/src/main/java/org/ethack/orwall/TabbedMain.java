@@ -11,7 +11,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 
 import org.ethack.orwall.adapter.TabsPagerAdapter;
-import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.FirewallExecutor;
 import org.ethack.orwall.lib.NatRules;
 import org.ethack.orwall.lib.Preferences;
 import org.sufficientlysecure.rootcommands.util.Log;
@@ -66,8 +66,7 @@ public class TabbedMain extends FragmentActivity implements ActionBar.TabListene
         // Is it the first application run?
         if (Preferences.isFirstRun(this)) {
             // Initialize orWall iptables rules - #72 should be better after that
-            Iptables iptables = new Iptables(this);
-            iptables.boot();
+            FirewallExecutor.get(this).boot();
             // Start Wizard
             Intent wizard = new Intent(this, WizardActivity.class);
             startActivity(wizard);
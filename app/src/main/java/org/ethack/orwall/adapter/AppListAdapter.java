@@ -381,8 +381,7 @@ public class AppListAdapter extends ArrayAdapter {
         if (appRule.isStored() && !updated.isEmpty()){
             done = natRules.update(updated);
             if (done){
-                appRule.uninstall(this.context);
-                updated.install(this.context);
+                updated.update(this.context);
                 Toast.makeText(context, context.getString(R.string.toast_update_rule), Toast.LENGTH_SHORT).show();
             }
         } else
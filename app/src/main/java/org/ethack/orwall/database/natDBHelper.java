@@ -3,20 +3,49 @@ package org.ethack.orwall.database;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.ethack.orwall.lib.AppRule;
+import org.ethack.orwall.lib.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
  * Simple DB helper in order to manage SQLite for NAT rules.
  * This also prepare the way for more features.
+ *
+ * There is a single helper per process, and its connection is never closed: write-ahead logging
+ * lets the firewall worker read while the UI writes, and hot statements are compiled once.
+ * SQLiteStatement isn't thread-safe: callers must synchronize on it while it's bound.
+ *
+ * Since v3, a rule is stored as its UID, its package name and an integer policy (see AppRule):
+ * proxy type in the low bits, then one bit per flag. appUID is the INTEGER PRIMARY KEY, hence the
+ * rowid: lookups by UID and full scans both walk the table b-tree, no other index is needed.
+ *
+ * Since v4, the journal table records firewall operations, see FirewallJournal.
  */
 public class natDBHelper extends SQLiteOpenHelper {
 
     public static final String NAT_TABLE_NAME = "rules";
     public static final String COLUMN_APPUID = "appUID";
     public static final String COLUMN_APPNAME = "appName";
-    public static final String COLUMN_ONIONTYPE = "onionType";
-    public static final String COLUMN_LOCALHOST = "localhost";
-    public static final String COLUMN_LOCALNETWORK = "localnetwork";
+    public static final String COLUMN_POLICY = "policy";
+
+    public static final String JOURNAL_TABLE_NAME = "journal";
+    public static final String COLUMN_SEQ = "seq";
+    public static final String COLUMN_OP = "op";
+    public static final String COLUMN_UID = "uid";
+    public static final String COLUMN_ALLOW = "allow";
+    public static final String COLUMN_ARGS = "args";
+    public static final String COLUMN_STATE = "state";
+    public static final String COLUMN_TS = "ts";
+
+    // v2 columns, only used for migration
+    private static final String COLUMN_ONIONTYPE = "onionType";
+    private static final String COLUMN_LOCALHOST = "localhost";
+    private static final String COLUMN_LOCALNETWORK = "localnetwork";
 
 /*
     @Deprecated
@@ -58,16 +87,150 @@ public class natDBHelper extends SQLiteOpenHelper {
                     COLUMN_LOCALNETWORK
             );
 
-    private static final int DATABASE_VERSION = 2;
+    private static final String NAT_TABLE_CREATE_V3 =
+            String.format(
+                    "CREATE TABLE %s (" +
+                            "%s INTEGER PRIMARY KEY," +
+                            "%s TEXT NOT NULL," +
+                            "%s INTEGER NOT NULL DEFAULT 0)",
+                    NAT_TABLE_NAME,
+                    COLUMN_APPUID,
+                    COLUMN_APPNAME,
+                    COLUMN_POLICY
+            );
+
+    private static final String JOURNAL_TABLE_CREATE_V4 =
+            String.format(
+                    "CREATE TABLE %s (" +
+                            "%s INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "%s INTEGER NOT NULL," +
+                            "%s INTEGER," +
+                            "%s INTEGER NOT NULL DEFAULT 0," +
+                            "%s INTEGER," +
+                            "%s TEXT," +
+                            "%s INTEGER NOT NULL DEFAULT 0," +
+                            "%s INTEGER NOT NULL)",
+                    JOURNAL_TABLE_NAME,
+                    COLUMN_SEQ,
+                    COLUMN_OP,
+                    COLUMN_UID,
+                    COLUMN_ALLOW,
+                    COLUMN_POLICY,
+                    COLUMN_ARGS,
+                    COLUMN_STATE,
+                    COLUMN_TS
+            );
+
+    private static final int DATABASE_VERSION = 4;
     private static final String DB_NAME = "nat.s3db";
 
-    public natDBHelper(Context context) {
+    private static final String COLUMNS = String.format("%s, %s, %s",
+            COLUMN_APPNAME, COLUMN_APPUID, COLUMN_POLICY);
+
+    // queries returning rows go through rawQuery(): SQLite caches their compiled form per connection
+    public static final String SELECT_ALL = String.format("SELECT %s FROM %s", COLUMNS, NAT_TABLE_NAME);
+
+    private static final String JOURNAL_COLUMNS = String.format("%s, %s, %s, %s, %s, %s, %s",
+            COLUMN_OP, COLUMN_UID, COLUMN_ALLOW, COLUMN_POLICY, COLUMN_ARGS, COLUMN_STATE, COLUMN_TS);
+
+    public static final String SELECT_JOURNAL_STATE = String.format(
+            "SELECT %s, %s FROM %s WHERE %s=? ORDER BY %s", COLUMN_SEQ, JOURNAL_COLUMNS,
+            JOURNAL_TABLE_NAME, COLUMN_STATE, COLUMN_SEQ);
+
+    private static natDBHelper instance = null;
+
+    private SQLiteStatement insertStatement = null;
+    private SQLiteStatement updateStatement = null;
+    private SQLiteStatement deleteStatement = null;
+    private SQLiteStatement journalInsertStatement = null;
+    private SQLiteStatement journalStateStatement = null;
+    private SQLiteStatement journalCompactStatement = null;
+
+    private natDBHelper(Context context) {
         super(context, DB_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    public static synchronized natDBHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new natDBHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @return "INSERT ... VALUES (appName, appUID, policy)"
+     */
+    public synchronized SQLiteStatement getInsertStatement() {
+        if (this.insertStatement == null) {
+            this.insertStatement = getWritableDatabase().compileStatement(String.format(
+                    "INSERT INTO %s (%s) VALUES (?, ?, ?)", NAT_TABLE_NAME, COLUMNS));
+        }
+        return this.insertStatement;
+    }
+
+    /**
+     * @return "UPDATE ... SET appName, policy WHERE appUID"
+     */
+    public synchronized SQLiteStatement getUpdateStatement() {
+        if (this.updateStatement == null) {
+            this.updateStatement = getWritableDatabase().compileStatement(String.format(
+                    "UPDATE %s SET %s=?, %s=? WHERE %s=?", NAT_TABLE_NAME,
+                    COLUMN_APPNAME, COLUMN_POLICY, COLUMN_APPUID));
+        }
+        return this.updateStatement;
+    }
+
+    /**
+     * @return "DELETE ... WHERE appUID"
+     */
+    public synchronized SQLiteStatement getDeleteStatement() {
+        if (this.deleteStatement == null) {
+            this.deleteStatement = getWritableDatabase().compileStatement(String.format(
+                    "DELETE FROM %s WHERE %s=?", NAT_TABLE_NAME, COLUMN_APPUID));
+        }
+        return this.deleteStatement;
+    }
+
+    /**
+     * @return "INSERT ... VALUES (op, uid, allow, policy, args, state, ts)" into the journal
+     */
+    public synchronized SQLiteStatement getJournalInsertStatement() {
+        if (this.journalInsertStatement == null) {
+            this.journalInsertStatement = getWritableDatabase().compileStatement(String.format(
+                    "INSERT INTO %s (%s) VALUES (?, ?, ?, ?, ?, ?, ?)", JOURNAL_TABLE_NAME, JOURNAL_COLUMNS));
+        }
+        return this.journalInsertStatement;
+    }
+
+    /**
+     * @return "UPDATE ... SET state, ts WHERE seq" on the journal
+     */
+    public synchronized SQLiteStatement getJournalStateStatement() {
+        if (this.journalStateStatement == null) {
+            this.journalStateStatement = getWritableDatabase().compileStatement(String.format(
+                    "UPDATE %s SET %s=?, %s=? WHERE %s=?", JOURNAL_TABLE_NAME,
+                    COLUMN_STATE, COLUMN_TS, COLUMN_SEQ));
+        }
+        return this.journalStateStatement;
+    }
+
+    /**
+     * @return "DELETE ... WHERE state != pending state AND seq <= max(seq) - kept entries" on the journal
+     */
+    public synchronized SQLiteStatement getJournalCompactStatement() {
+        if (this.journalCompactStatement == null) {
+            this.journalCompactStatement = getWritableDatabase().compileStatement(String.format(
+                    "DELETE FROM %s WHERE %s!=? AND %s<=(SELECT MAX(%s) FROM %s)-?", JOURNAL_TABLE_NAME,
+                    COLUMN_STATE, COLUMN_SEQ, COLUMN_SEQ, JOURNAL_TABLE_NAME));
+        }
+        return this.journalCompactStatement;
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(NAT_TABLE_CREATE_V2);
+        db.execSQL(NAT_TABLE_CREATE_V3);
+        db.execSQL(JOURNAL_TABLE_CREATE_V4);
     }
 
     @Override
@@ -79,16 +242,8 @@ public class natDBHelper extends SQLiteOpenHelper {
         db.beginTransaction();
         try{
             for(int version = oldVersion; version < newVersion; version++){
-                switch (version){
-                    // VERSION 1 -----> 2
-                    case 1:
-                        db.execSQL(String.format("ALTER TABLE %s RENAME TO %s_backup;", NAT_TABLE_NAME, NAT_TABLE_NAME));
-                        db.execSQL(NAT_TABLE_CREATE_V2);
-                        db.execSQL(String.format(
-                                "INSERT INTO %s(%s, %s, %s, %s, %s) SELECT %s, %s, %s, 0, 0 FROM %s_backup;",
-                                NAT_TABLE_NAME, COLUMN_APPUID, COLUMN_APPNAME, COLUMN_ONIONTYPE, COLUMN_LOCALHOST, COLUMN_LOCALNETWORK,
-                                                COLUMN_APPUID, COLUMN_APPNAME, COLUMN_ONIONTYPE, NAT_TABLE_NAME));
-                        db.execSQL(String.format("DROP TABLE %s_backup;", NAT_TABLE_NAME));
+                for (String statement : getUpgrade(version)) {
+                    db.execSQL(statement);
                 }
             }
 
@@ -98,4 +253,50 @@ public class natDBHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Statements upgrading the schema from a version to the next one
+     * @param version version to upgrade from
+     * @return SQL statements, none if there's nothing to do
+     */
+    static List<String> getUpgrade(final int version) {
+        ArrayList<String> sql = new ArrayList<>();
+        switch (version){
+            // VERSION 1 -----> 2
+            case 1:
+                sql.add(String.format("ALTER TABLE %s RENAME TO %s_backup;", NAT_TABLE_NAME, NAT_TABLE_NAME));
+                sql.add(NAT_TABLE_CREATE_V2);
+                sql.add(String.format(
+                        "INSERT INTO %s(%s, %s, %s, %s, %s) SELECT %s, %s, %s, 0, 0 FROM %s_backup;",
+                        NAT_TABLE_NAME, COLUMN_APPUID, COLUMN_APPNAME, COLUMN_ONIONTYPE, COLUMN_LOCALHOST, COLUMN_LOCALNETWORK,
+                                        COLUMN_APPUID, COLUMN_APPNAME, COLUMN_ONIONTYPE, NAT_TABLE_NAME));
+                sql.add(String.format("DROP TABLE %s_backup;", NAT_TABLE_NAME));
+                break;
+            // VERSION 2 -----> 3
+            case 2:
+                sql.add(String.format("ALTER TABLE %s RENAME TO %s_backup;", NAT_TABLE_NAME, NAT_TABLE_NAME));
+                sql.add(NAT_TABLE_CREATE_V3);
+                sql.add(String.format(
+                        "INSERT INTO %s(%s, %s, %s) SELECT %s, %s, " +
+                                "(CASE %s WHEN '%s' THEN %d WHEN '%s' THEN %d ELSE %d END)" +
+                                " | (CASE WHEN %s = 1 THEN %d ELSE 0 END)" +
+                                " | (CASE WHEN %s = 1 THEN %d ELSE 0 END) FROM %s_backup;",
+                        NAT_TABLE_NAME, COLUMN_APPUID, COLUMN_APPNAME, COLUMN_POLICY,
+                        COLUMN_APPUID, COLUMN_APPNAME,
+                        COLUMN_ONIONTYPE,
+                        Constants.DB_ONION_TYPE_TOR, AppRule.PROXY_TOR,
+                        Constants.DB_ONION_TYPE_BYPASS, AppRule.PROXY_BYPASS,
+                        AppRule.PROXY_NONE,
+                        COLUMN_LOCALHOST, AppRule.FLAG_LOCALHOST,
+                        COLUMN_LOCALNETWORK, AppRule.FLAG_LOCALNETWORK,
+                        NAT_TABLE_NAME));
+                sql.add(String.format("DROP TABLE %s_backup;", NAT_TABLE_NAME));
+                break;
+            // VERSION 3 -----> 4
+            case 3:
+                sql.add(JOURNAL_TABLE_CREATE_V4);
+                break;
+        }
+        return sql;
+    }
+
 }
@@ -19,7 +19,7 @@ import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.NatRules;
 import org.ethack.orwall.lib.PackageInfoData;
 import org.ethack.orwall.lib.Preferences;
-import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.RootStatus;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -33,6 +33,8 @@ import java.util.Map;
  */
 public class AppFragment extends Fragment {
 
+    private RootStatus.OnRootStatusChangedListener rootListener;
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
 
@@ -40,12 +42,16 @@ public class AppFragment extends Fragment {
 
         view  = inflater.inflate(R.layout.fragment_tabbed_apps, container, false);
         Iptables iptables = new Iptables(getActivity());
-        // Do we have root access ?
-        if (RootCommands.rootAccessGiven()) {
-            view.findViewById(R.id.warn_root).setVisibility(View.GONE);
-        } else {
-            view.findViewById(R.id.warn_root).setVisibility(View.VISIBLE);
-        }
+        // Do we have root access ? Answered from cache, updated once checked in background
+        final View warnRoot = view.findViewById(R.id.warn_root);
+        showRootStatus(warnRoot, RootStatus.get());
+        rootListener = new RootStatus.OnRootStatusChangedListener() {
+            @Override
+            public void onRootStatusChanged(int status) {
+                showRootStatus(warnRoot, status);
+            }
+        };
+        RootStatus.addListener(rootListener);
         // Hopefully there IS iptables on this device…
         if (Iptables.iptablesExists()) {
             view.findViewById(R.id.warn_iptables).setVisibility(View.GONE);
@@ -76,8 +82,7 @@ public class AppFragment extends Fragment {
         // get enabled apps
         NatRules natRules = new NatRules(this.getActivity());
         List<AppRule> enabledApps = natRules.getAllRules();
-        LongSparseArray<AppRule> rulesIndex = new LongSparseArray<>();
-        for (AppRule app: enabledApps) rulesIndex.put(app.getAppUID(), app);
+        LongSparseArray<AppRule> rulesIndex = natRules.getRulesIndex();
 
         // get disabled apps (filtered with enabled)
         List<AppRule> disabledApps = listDisabledApps(rulesIndex);
@@ -99,6 +104,25 @@ public class AppFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // a denial may be outdated, e.g. the su prompt was dismissed the first time
+        if (!RootStatus.isGranted()) {
+            RootStatus.refresh();
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        RootStatus.removeListener(rootListener);
+    }
+
+    private static void showRootStatus(View warnRoot, int status) {
+        warnRoot.setVisibility(status == RootStatus.DENIED ? View.VISIBLE : View.GONE);
+    }
+
     /**
      * List all disabled application. Meaning: installed app requiring Internet, but NOT in NatRules.
      * It also filters out special apps like orbot and i2p.
@@ -29,10 +29,11 @@ import org.ethack.orwall.TabbedMain;
 import org.ethack.orwall.WizardActivity;
 import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.InstallScripts;
+import org.ethack.orwall.lib.FirewallExecutor;
 import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.Preferences;
 import org.ethack.orwall.lib.Util;
-import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.RootStatus;
 
 import java.util.concurrent.TimeUnit;
 
@@ -48,6 +49,7 @@ public class HomeFragment extends Fragment {
     private Long sip_uid;
     private Iptables iptables;
     private View home;
+    private RootStatus.OnRootStatusChangedListener rootListener;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -61,7 +63,6 @@ public class HomeFragment extends Fragment {
 
         // Status switches — most of them are read-only, as they just displays devices capabilities.
         //Switch status_initscript = (Switch) home.findViewById(R.id.status_initscript);
-        Switch status_root = (Switch) home.findViewById(R.id.status_root);
         Switch status_iptables = (Switch) home.findViewById(R.id.status_iptables);
         //Switch status_ipt_comments = (Switch) home.findViewById(R.id.status_ipt_comments);
         Switch status_orbot = (Switch) home.findViewById(R.id.status_iptables);
@@ -120,14 +121,15 @@ public class HomeFragment extends Fragment {
             }
         });
         */
-        // Do we have root access ?
-        if (RootCommands.rootAccessGiven()) {
-            status_root.setChecked(true);
-            home.findViewById(R.id.warn_root).setVisibility(View.GONE);
-        } else {
-            status_root.setChecked(false);
-            home.findViewById(R.id.warn_root).setVisibility(View.VISIBLE);
-        }
+        // Do we have root access ? Answered from cache, updated once checked in background
+        showRootStatus(RootStatus.get());
+        rootListener = new RootStatus.OnRootStatusChangedListener() {
+            @Override
+            public void onRootStatusChanged(int status) {
+                showRootStatus(status);
+            }
+        };
+        RootStatus.addListener(rootListener);
         // Hopefully there IS iptables on this device…
         if (Iptables.iptablesExists()) {
             status_iptables.setChecked(true);
@@ -173,6 +175,18 @@ public class HomeFragment extends Fragment {
         return home;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        RootStatus.removeListener(rootListener);
+    }
+
+    private void showRootStatus(int status) {
+        Switch status_root = (Switch) home.findViewById(R.id.status_root);
+        status_root.setChecked(status == RootStatus.GRANTED);
+        home.findViewById(R.id.warn_root).setVisibility(status == RootStatus.DENIED ? View.VISIBLE : View.GONE);
+    }
+
     private void updateOptions() {
         Switch browserStatus = (Switch) home.findViewById(R.id.browser_status);
         Switch sipStatus = (Switch) home.findViewById(R.id.sip_status);
@@ -207,7 +221,7 @@ public class HomeFragment extends Fragment {
                 @Override
                 public void onClick(View view) {
                     boolean checked = ((Switch) view).isChecked();
-                    iptables.manageSip(checked, sip_uid);
+                    FirewallExecutor.get(getActivity()).manageSip(checked, sip_uid);
                     Preferences.setSIPEnabled(getActivity(), checked);
                 }
             });
@@ -226,7 +240,7 @@ public class HomeFragment extends Fragment {
     public void toggleBrowser(final View view) {
         boolean checked = ((Switch) view).isChecked();
 
-        iptables.manageCaptiveBrowser(checked, this.browser_uid);
+        FirewallExecutor.get(getActivity()).manageCaptiveBrowser(checked, this.browser_uid);
 
         if (checked) {
 
@@ -244,7 +258,7 @@ public class HomeFragment extends Fragment {
 
                 @Override
                 public void onFinish() {
-                    iptables.manageCaptiveBrowser(false, browser_uid);
+                    FirewallExecutor.get(getActivity()).manageCaptiveBrowser(false, browser_uid);
                     Preferences.setBrowserEnabled(getActivity(), false);
                     CharSequence text = getResources().getString(R.string.main_end_of_browser);
                     Toast.makeText(getActivity(), text, Toast.LENGTH_LONG).show();
@@ -343,6 +357,10 @@ public class HomeFragment extends Fragment {
             Preferences.setOrwallEnabled(getActivity(), false);
             orwallSwitch.setChecked(false);
         }
+        // root may have been granted while we were away: only a grant is trusted from cache
+        if (!RootStatus.isGranted()) {
+            RootStatus.refresh();
+        }
 
         updateOptions();
     }
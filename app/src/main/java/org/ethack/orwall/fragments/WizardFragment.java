@@ -14,7 +14,7 @@ import org.ethack.orwall.lib.InstallScripts;
 import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.Preferences;
 import org.ethack.orwall.lib.Util;
-import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.RootStatus;
 
 import java.util.Locale;
 
@@ -34,6 +34,8 @@ public class WizardFragment extends Fragment {
      */
     private int mPageNumber;
 
+    private RootStatus.OnRootStatusChangedListener rootListener;
+
 
     public WizardFragment() {
     }
@@ -131,8 +133,16 @@ public class WizardFragment extends Fragment {
             main_content.addView(initScript);*/
 
             // Root status
-            Switch rootStatus = new Switch(getActivity());
-            rootStatus.setChecked(RootCommands.rootAccessGiven());
+            final Switch rootStatus = new Switch(getActivity());
+            rootStatus.setChecked(RootStatus.isGranted());
+            rootListener = new RootStatus.OnRootStatusChangedListener() {
+                @Override
+                public void onRootStatusChanged(int status) {
+                    rootStatus.setChecked(status == RootStatus.GRANTED);
+                }
+            };
+            RootStatus.addListener(rootListener);
+            RootStatus.refresh();
             rootStatus.setEnabled(false);
             rootStatus.setText(getString(R.string.wizard_init_root_text));
             main_content.addView(rootStatus);
@@ -168,4 +178,10 @@ public class WizardFragment extends Fragment {
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        RootStatus.removeListener(rootListener);
+    }
+
 }
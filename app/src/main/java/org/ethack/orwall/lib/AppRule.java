@@ -9,12 +9,29 @@ import java.util.ArrayList;
 
 /**
  * Data structure: application NAT rule.
+ *
+ * The rule itself is packed into an integer policy, which is what the database stores:
+ * the proxy type in the low bits, then one bit per flag.
  */
 public class AppRule {
+    public final static int PROXY_NONE = 0;
+    public final static int PROXY_TOR = 1;
+    public final static int PROXY_BYPASS = 2;
+    public final static int PROXY_MASK = 0x3;
+    public final static int FLAG_LOCALHOST = 0x4;
+    public final static int FLAG_LOCALNETWORK = 0x8;
+
+    // indexed by proxy type
+    private final static String[] ONION_TYPES = {
+            Constants.DB_ONION_TYPE_NONE,
+            Constants.DB_ONION_TYPE_TOR,
+            Constants.DB_ONION_TYPE_BYPASS
+    };
+
     private Boolean stored;
     private String pkgName;
     private Long appUID;
-    private String onionType;
+    private int proxyType;
     private Boolean localHost;
     private Boolean localNetwork;
 
@@ -27,7 +44,7 @@ public class AppRule {
         this.stored = stored;
         this.pkgName = pkgName;
         this.appUID = appUID;
-        this.onionType = onionType;
+        setOnionType(onionType);
         this.localHost = localHost;
         this.localNetwork = localNetwork;
         // set to a null value - used in AppListAdapter
@@ -40,7 +57,7 @@ public class AppRule {
         this.stored = false;
         this.pkgName = null;
         this.appUID = null;
-        this.onionType = Constants.DB_ONION_TYPE_NONE;
+        this.proxyType = PROXY_NONE;
         this.localHost = false;
         this.localNetwork = false;
         // set to a null value - used in AppListAdapter
@@ -57,7 +74,7 @@ public class AppRule {
     }
 
     public Boolean isEmpty(){
-        return !this.localHost && !this.localNetwork && this.onionType.equals(Constants.DB_ONION_TYPE_NONE);
+        return !this.localHost && !this.localNetwork && this.proxyType == PROXY_NONE;
     }
 
     public String getPkgName() {
@@ -69,19 +86,43 @@ public class AppRule {
     }
 
     public String getOnionType() {
-        return this.onionType;
+        return ONION_TYPES[this.proxyType];
+    }
+
+    public int getProxyType() {
+        return this.proxyType;
+    }
+
+    /**
+     * @return packed rule, as stored in database
+     */
+    public int getPolicy() {
+        int policy = this.proxyType;
+        if (this.localHost) policy |= FLAG_LOCALHOST;
+        if (this.localNetwork) policy |= FLAG_LOCALNETWORK;
+        return policy;
+    }
+
+    /**
+     * Unpack a rule read from database
+     */
+    public void setPolicy(int policy) {
+        int proxy = policy & PROXY_MASK;
+        this.proxyType = (proxy < ONION_TYPES.length ? proxy : PROXY_NONE);
+        this.localHost = (policy & FLAG_LOCALHOST) != 0;
+        this.localNetwork = (policy & FLAG_LOCALNETWORK) != 0;
     }
 
     public String getDisplay(){
         String ret = this.appName;
         ArrayList<String> flags = new ArrayList<>();
-        switch (this.onionType) {
-            case Constants.DB_ONION_TYPE_NONE:
+        switch (this.proxyType) {
+            case PROXY_NONE:
                 break;
-            case Constants.DB_ONION_TYPE_BYPASS:
+            case PROXY_BYPASS:
                 flags.add("Bypass");
                 break;
-            case Constants.DB_ONION_TYPE_TOR:
+            case PROXY_TOR:
                 flags.add("Tor");
                 break;
         }
@@ -103,7 +144,13 @@ public class AppRule {
     }
 
     public void setOnionType(String onionType) {
-        this.onionType = onionType;
+        if (Constants.DB_ONION_TYPE_TOR.equals(onionType)) {
+            this.proxyType = PROXY_TOR;
+        } else if (Constants.DB_ONION_TYPE_BYPASS.equals(onionType)) {
+            this.proxyType = PROXY_BYPASS;
+        } else {
+            this.proxyType = PROXY_NONE;
+        }
     }
 
     public Boolean getLocalHost() {
@@ -168,6 +215,15 @@ public class AppRule {
         context.startService(bg);
     }
 
+    /**
+     * Bring installed rules to this rule state, only changing what differs.
+     */
+    public void update(Context context){
+        Intent bg = newBackground(context, null);
+        bg.putExtra(Constants.ACTION, Constants.ACTION_UPDATE_RULE);
+        context.startService(bg);
+    }
+
     public void install(Context context){
         install(context, null);
     }
@@ -7,6 +7,7 @@ public class Constants {
     public final static String SPECIAL_APPS_PREFIX = "orwall.special.";
     public final static String IPTABLES = "/system/bin/iptables";
     public final static String IP6TABLES = "/system/bin/ip6tables";
+    public final static String IPTABLES_RESTORE = "/system/bin/iptables-restore";
 
     public final static String ACTION = "org.ethack.orwall.backgroundProcess.action";
     public final static String ACTION_PORTAL = "org.ethack.orwall.backgroundProcess.action.portal";
@@ -14,6 +15,8 @@ public class Constants {
 
     public final static String ACTION_ADD_RULE = "org.ethack.orwall.backgroundProcess.action.addRule";
     public final static String ACTION_RM_RULE = "org.ethack.orwall.backgroundProcess.action.rmRule";
+    public final static String ACTION_UPDATE_RULE = "org.ethack.orwall.backgroundProcess.action.updateRule";
+    public final static String ACTION_RECONCILE_RULES = "org.ethack.orwall.backgroundProcess.action.reconcileRules";
     public final static String PARAM_APPUID = "org.ethack.orwall.backgroundProcess.action.rule.appUid";
     public final static String PARAM_APPNAME = "org.ethack.orwall.backgroundProcess.action.rule.appName";
     public final static String PARAM_LOCALHOST = "org.ethack.orwall.backgroundProcess.action.rule.localHost";
@@ -0,0 +1,560 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.DriftCheckReceiver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single writer for the firewall.
+ *
+ * Every rule change goes through one queue, served by one thread with one Iptables instance, so
+ * that callers never race on the xtables lock. Operations are coalesced while they wait: a toggle
+ * followed by its opposite cancels out, repeated LAN or tethering updates collapse into the last
+ * one, and app changes are merged into a single reconciliation. Whatever is pending when the
+ * thread wakes up is applied in as few iptables-restore calls as possible.
+ *
+ * Operations have a priority: lockdown and proxy infrastructure first, app rules next, and
+ * reconciliations nobody waits for last. The thread always serves the most urgent lane, so that
+ * Tor gets connectivity as soon as possible, whatever the number of pending app rules.
+ *
+ * Operations are recorded in a FirewallJournal when submitted, and marked once done: if the process
+ * is killed before they are applied, they are replayed when the executor is created again. The
+ * caller only pays for a single insert; marking entries and compacting the journal are left to the
+ * executor thread.
+ */
+public final class FirewallExecutor {
+    private final static String TAG = "FirewallExecutor";
+
+    public final static int OP_BOOT = 0;
+    public final static int OP_DEACTIVATE = 1;
+    public final static int OP_RECONCILE = 2;
+    public final static int OP_LAN = 3;
+    public final static int OP_TETHER = 4;
+    public final static int OP_ADB = 5;
+    public final static int OP_SSH = 6;
+    public final static int OP_SIP = 7;
+    public final static int OP_BROWSER = 8;
+    public final static int OP_RELOAD = 9;
+    public final static int OP_PORTS = 10;
+    public final static int OP_DRIFT = 11;
+
+    public final static int PRIORITY_CRITICAL = 0;
+    public final static int PRIORITY_APPS = 1;
+    public final static int PRIORITY_BACKGROUND = 2;
+
+    private static FirewallExecutor instance = null;
+
+    private final Context context;
+    private final Iptables iptables;
+    private final FirewallQueue queue = new FirewallQueue();
+    private final FirewallJournal journal;
+    // journal entries of operations coalesced away, to be marked by the executor thread
+    private final ArrayList<Long> superseded = new ArrayList<>();
+
+    // statistics
+    private long executed = 0;
+    private long lastLatency = 0;
+    private long maxLatency = 0;
+    private long totalLatency = 0;
+
+    /**
+     * Pending firewall operation
+     */
+    static class Op {
+        final int type;
+        int priority;
+        final long enqueued = SystemClock.elapsedRealtime();
+        // OP_RECONCILE: application, or null for all; OP_SIP, OP_BROWSER: application
+        Long uid = null;
+        // OP_RECONCILE: wanted state, or null if the application must not have any rule
+        AppRule rule = null;
+        // OP_ADB, OP_SSH, OP_SIP, OP_BROWSER: enable or disable
+        boolean allow = false;
+        // OP_TETHER: tethered interfaces
+        Set<String> interfaces = null;
+        // called once applied, from the executor thread
+        Runnable done = null;
+        // journal entries this operation stands for
+        final ArrayList<Long> seqs = new ArrayList<>();
+        // recorded in the journal already, or never to be
+        boolean journaled;
+        // rules it queued in a shared batch, to blame it if one of them fails
+        List<String> rules = null;
+        boolean failed = false;
+
+        Op(final int type) {
+            this.type = type;
+            this.priority = (type == OP_BOOT || type == OP_DEACTIVATE || type == OP_RELOAD || type == OP_PORTS ?
+                    PRIORITY_CRITICAL : PRIORITY_APPS);
+            // drift checks don't change anything by themselves
+            this.journaled = (type == OP_DRIFT);
+        }
+
+        boolean sameTarget(final Op other) {
+            return this.type == other.type &&
+                    (this.uid == null ? other.uid == null : this.uid.equals(other.uid));
+        }
+    }
+
+    private FirewallExecutor(Context context) {
+        this.context = context.getApplicationContext();
+        this.iptables = new Iptables(this.context);
+        this.journal = new FirewallJournal(this.context);
+
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+                loop();
+            }
+        }, TAG);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Submit again operations a previous process recorded but never applied.
+     * Session-only operations are expired instead: tethered interfaces may be long gone, and the
+     * next tethering broadcast brings the current ones; a captive browser grant lasts a grace
+     * period whose timer died with that process. Revoking the browser is still replayed, as
+     * nothing else would remove its rules.
+     */
+    private void replay() {
+        for (FirewallJournal.Entry entry : this.journal.getPending()) {
+            Op op = new Op(entry.op);
+            op.seqs.add(entry.seq);
+            op.journaled = true;
+            op.uid = entry.uid;
+            op.allow = entry.allow;
+            switch (entry.op) {
+                case OP_RECONCILE:
+                    if (entry.policy != null) {
+                        op.rule = new AppRule();
+                        op.rule.setStored(true);
+                        op.rule.setPkgName(entry.args);
+                        op.rule.setAppUID(entry.uid);
+                        op.rule.setPolicy(entry.policy);
+                    }
+                    break;
+                case OP_TETHER:
+                    Log.i(TAG, "Expiring tethering update from journal entry " + entry.seq);
+                    this.journal.complete(op.seqs, FirewallJournal.STATE_SUPERSEDED);
+                    continue;
+                case OP_BROWSER:
+                    if (op.allow) {
+                        Log.i(TAG, "Expiring captive browser grant from journal entry " + entry.seq);
+                        this.journal.complete(op.seqs, FirewallJournal.STATE_SUPERSEDED);
+                        continue;
+                    }
+                    break;
+                case OP_BOOT:
+                case OP_DEACTIVATE:
+                case OP_LAN:
+                case OP_ADB:
+                case OP_SSH:
+                case OP_SIP:
+                case OP_RELOAD:
+                case OP_PORTS:
+                    break;
+                default:
+                    Log.e(TAG, "Unknown journal operation " + entry.op);
+                    this.journal.complete(op.seqs, FirewallJournal.STATE_FAILED);
+                    continue;
+            }
+            Log.i(TAG, "Replaying operation " + entry.op + " from journal entry " + entry.seq);
+            submit(op);
+        }
+    }
+
+    public static synchronized FirewallExecutor get(Context context) {
+        if (instance == null) {
+            instance = new FirewallExecutor(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Initialize every rule, see Iptables.boot().
+     * Main chains, Orbot and the lock removal are applied first; app rules follow in their own lane.
+     * @param done called once main rules are applied, or null
+     */
+    public void boot(final Runnable done) {
+        Op op = new Op(OP_BOOT);
+        op.done = done;
+        submit(op);
+    }
+
+    public void boot() {
+        boot(null);
+    }
+
+    public void deactivate() {
+        submit(new Op(OP_DEACTIVATE));
+    }
+
+    /**
+     * Install every rule again, e.g. when the rules layout changes.
+     * The new ruleset replaces the current one at once, see Iptables.reload().
+     */
+    public void reload() {
+        submit(new Op(OP_RELOAD));
+    }
+
+    /**
+     * Bring rules of an application to the given state
+     * @param appUID application UID
+     * @param rule wanted state, or null to remove its rules
+     */
+    public void reconcileApp(final long appUID, final AppRule rule) {
+        Op op = new Op(OP_RECONCILE);
+        op.uid = appUID;
+        op.rule = rule;
+        submit(op);
+    }
+
+    /**
+     * Bring app rules to the state stored in NatRules, once nothing more urgent is pending
+     */
+    public void reconcileApps() {
+        reconcileApps(PRIORITY_BACKGROUND);
+    }
+
+    private void reconcileApps(final int priority) {
+        Op op = new Op(OP_RECONCILE);
+        op.priority = priority;
+        submit(op);
+    }
+
+    public void LANPolicy() {
+        submit(new Op(OP_LAN));
+    }
+
+    /**
+     * Check rules are still the expected ones, and repair them otherwise, see
+     * Iptables.reconcileDrift(). Runs once nothing more urgent is pending.
+     * @param done called once checked, or null
+     */
+    public void checkDrift(final Runnable done) {
+        Op op = new Op(OP_DRIFT);
+        op.priority = PRIORITY_BACKGROUND;
+        op.done = done;
+        submit(op);
+    }
+
+    /**
+     * Apply proxy ports from preferences to installed rules, see Iptables.updatePorts()
+     */
+    public void updatePorts() {
+        submit(new Op(OP_PORTS));
+    }
+
+    /**
+     * Update tethering rules
+     * @param interfaces currently tethered interfaces
+     */
+    public void tether(final Set<String> interfaces) {
+        Op op = new Op(OP_TETHER);
+        op.interfaces = new HashSet<>(interfaces);
+        submit(op);
+    }
+
+    public void enableADB(final boolean allow) {
+        Op op = new Op(OP_ADB);
+        op.allow = allow;
+        submit(op);
+    }
+
+    public void enableSSH(final boolean allow) {
+        Op op = new Op(OP_SSH);
+        op.allow = allow;
+        submit(op);
+    }
+
+    public void manageSip(final boolean allow, final long appUID) {
+        Op op = new Op(OP_SIP);
+        op.uid = appUID;
+        op.allow = allow;
+        submit(op);
+    }
+
+    public void manageCaptiveBrowser(final boolean allow, final long appUID) {
+        Op op = new Op(OP_BROWSER);
+        op.uid = appUID;
+        op.allow = allow;
+        submit(op);
+    }
+
+    /**
+     * @return number of operations waiting to be applied
+     */
+    public synchronized int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return number of operations applied since start
+     */
+    public synchronized long getExecutedCount() {
+        return this.executed;
+    }
+
+    /**
+     * @return number of operations dropped or merged while waiting
+     */
+    public synchronized long getCoalescedCount() {
+        return this.queue.getCoalescedCount();
+    }
+
+    /**
+     * @return time between submission and application of the last operation, in ms
+     */
+    public synchronized long getLastLatency() {
+        return this.lastLatency;
+    }
+
+    public synchronized long getMaxLatency() {
+        return this.maxLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return (this.executed == 0 ? 0 : this.totalLatency / this.executed);
+    }
+
+    private void submit(final Op op) {
+        if (!op.journaled) {
+            op.journaled = true;
+            long seq = this.journal.append(op.type, op.uid, op.allow,
+                    (op.rule == null ? null : op.rule.getPolicy()), getArgs(op));
+            if (seq > 0) op.seqs.add(seq);
+        }
+
+        synchronized (this) {
+            this.superseded.addAll(this.queue.add(op));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Mark journal entries of operations coalesced away, from the executor thread
+     */
+    private void supersede() {
+        ArrayList<Long> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(this.superseded);
+            this.superseded.clear();
+        }
+        this.journal.complete(dropped, FirewallJournal.STATE_SUPERSEDED);
+    }
+
+    /**
+     * @return operation arguments to journal, besides UID, toggle and rule policy
+     */
+    private static String getArgs(final Op op) {
+        if (op.type == OP_RECONCILE && op.rule != null) {
+            return op.rule.getPkgName();
+        }
+        if (op.type == OP_TETHER) {
+            StringBuilder sb = new StringBuilder();
+            for (String iface : op.interfaces) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(iface);
+            }
+            return sb.toString();
+        }
+        return null;
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (this) {
+                while (this.queue.isEmpty() && this.superseded.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            supersede();
+            ArrayList<Op> ops;
+            synchronized (this) {
+                ops = this.queue.nextLane();
+            }
+            if (ops.isEmpty()) continue;
+            try {
+                flush(ops);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to apply firewall operations", e);
+                for (Op op : ops) {
+                    op.failed = true;
+                }
+            }
+            done(ops);
+        }
+    }
+
+    /**
+     * Apply pending operations, in order. Critical operations and drift checks run on their own; operations
+     * between them share a single batch, app changes being reconciled at once at its end.
+     */
+    private void flush(final List<Op> ops) {
+        Map<Long, AppRule> overrides = null;
+        ArrayList<Op> reconciled = new ArrayList<>();
+        ArrayList<Op> batched = new ArrayList<>();
+        boolean batching = false;
+
+        for (Op op : ops) {
+            if (op.priority == PRIORITY_CRITICAL || op.type == OP_DRIFT) {
+                if (batching) {
+                    commit(overrides, reconciled, batched);
+                    overrides = null;
+                    reconciled.clear();
+                    batched.clear();
+                    batching = false;
+                }
+                apply(op);
+                continue;
+            }
+            if (!batching) {
+                this.iptables.beginBatch();
+                batching = true;
+            }
+            if (op.type == OP_RECONCILE) {
+                if (overrides == null) overrides = new HashMap<>();
+                if (op.uid != null) overrides.put(op.uid, op.rule);
+                reconciled.add(op);
+            } else {
+                int from = this.iptables.getBatchSize();
+                apply(op);
+                op.rules = new ArrayList<>(this.iptables.getBatchRules(from));
+                batched.add(op);
+            }
+        }
+        if (batching) {
+            commit(overrides, reconciled, batched);
+        }
+    }
+
+    private void commit(final Map<Long, AppRule> overrides, final List<Op> reconciled, final List<Op> batched) {
+        int from = this.iptables.getBatchSize();
+        if (overrides != null && !this.iptables.reconcileApps(overrides)) {
+            Log.e(TAG, "Unable to reconcile app rules");
+            for (Op op : reconciled) {
+                op.failed = true;
+            }
+        }
+        // reconcileApps() only queued its changes: failures come with the commit
+        HashSet<String> appRules = new HashSet<>(this.iptables.getBatchRules(from));
+
+        // lanes may reorder toggles around a boot, which installs them from preferences too:
+        // only apply what isn't in place yet
+        ArrayList<String> failed = new ArrayList<>();
+        this.iptables.commitMissing(failed);
+
+        for (String rule : failed) {
+            for (Op op : batched) {
+                if (op.rules.contains(rule)) op.failed = true;
+            }
+            // app rules are shared by UIDs: blame the applications a failing rule covers
+            if (!appRules.contains(rule)) continue;
+            for (Op op : reconciled) {
+                if (op.uid == null || UidRanges.covers(rule, op.uid)) {
+                    op.failed = true;
+                }
+            }
+        }
+    }
+
+    private void apply(final Op op) {
+        switch (op.type) {
+            case OP_BOOT:
+                this.iptables.boot(false);
+                reconcileApps(PRIORITY_APPS);
+                DriftCheckReceiver.schedule(this.context);
+                break;
+            case OP_DEACTIVATE:
+                this.iptables.deactivate();
+                this.iptables.deactivateV6();
+                DriftCheckReceiver.cancel(this.context);
+                break;
+            case OP_RELOAD:
+                if (!this.iptables.reload()) {
+                    Log.e(TAG, "Unable to replace the ruleset, reloading the slow way");
+                    this.iptables.deactivate();
+                    this.iptables.deactivateV6();
+                    this.iptables.boot(false);
+                    reconcileApps(PRIORITY_APPS);
+                }
+                DriftCheckReceiver.schedule(this.context);
+                break;
+            case OP_DRIFT:
+                this.iptables.reconcileDrift();
+                break;
+            case OP_LAN:
+                op.failed = !this.iptables.LANPolicy();
+                break;
+            case OP_PORTS:
+                if (!this.iptables.updatePorts()) {
+                    Log.e(TAG, "Unable to update proxy ports");
+                    op.failed = true;
+                }
+                break;
+            case OP_TETHER:
+                Set<String> before = Preferences.getTetherInterfaces(this.context);
+                if (!op.interfaces.equals(before)) {
+                    op.failed = !this.iptables.tetherUpdate(this.context, before, op.interfaces);
+                }
+                break;
+            // while batching, these only queue their rules: commit() tells whether they failed
+            case OP_ADB:
+                op.failed = !this.iptables.enableADB(op.allow);
+                break;
+            case OP_SSH:
+                op.failed = !this.iptables.enableSSH(op.allow);
+                break;
+            case OP_SIP:
+                op.failed = !this.iptables.manageSip(op.allow, op.uid);
+                break;
+            case OP_BROWSER:
+                op.failed = !this.iptables.manageCaptiveBrowser(op.allow, op.uid);
+                break;
+        }
+    }
+
+    private void done(final List<Op> ops) {
+        ArrayList<Long> applied = new ArrayList<>();
+        ArrayList<Long> failed = new ArrayList<>();
+        for (Op op : ops) {
+            (op.failed ? failed : applied).addAll(op.seqs);
+        }
+        this.journal.complete(applied, FirewallJournal.STATE_APPLIED);
+        this.journal.complete(failed, FirewallJournal.STATE_FAILED);
+
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            for (Op op : ops) {
+                long latency = now - op.enqueued;
+                this.executed++;
+                this.lastLatency = latency;
+                this.maxLatency = Math.max(this.maxLatency, latency);
+                this.totalLatency += latency;
+            }
+            Log.d(TAG, String.format(Locale.US,
+                    "%d operation(s) applied in %d ms, %d pending, %d coalesced so far, average latency %d ms",
+                    ops.size(), this.lastLatency, this.queue.size(), this.queue.getCoalescedCount(), getAverageLatency()));
+        }
+        for (Op op : ops) {
+            if (op.done != null) op.done.run();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.ethack.orwall.database.natDBHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable log of firewall operations, kept next to rules in the database.
+ *
+ * Each operation is recorded as pending when it's submitted, and marked once applied, failed or
+ * superseded by another one. If the process dies in between, pending entries are what never
+ * reached the kernel: they are replayed on next start, instead of rebuilding everything.
+ * Completed entries are compacted away regularly, only the last ones are kept for debugging.
+ *
+ * The journal must never prevent the firewall from working: database errors are only logged.
+ */
+public class FirewallJournal {
+    private final static String TAG = "FirewallJournal";
+
+    public final static int STATE_PENDING = 0;
+    public final static int STATE_APPLIED = 1;
+    public final static int STATE_FAILED = 2;
+    public final static int STATE_SUPERSEDED = 3;
+
+    // completed entries kept after compaction
+    private final static int KEEP = 100;
+    // compact every COMPACT_EVERY completed entries
+    private final static int COMPACT_EVERY = 50;
+
+    private final natDBHelper dbHelper;
+    private int completed = 0;
+
+    /**
+     * Journal entry, as stored
+     */
+    public static class Entry {
+        public final long seq;
+        public final int op;
+        // application UID, or null
+        public final Long uid;
+        public final boolean allow;
+        // packed AppRule, or null
+        public final Integer policy;
+        // operation specific arguments, or null
+        public final String args;
+
+        private Entry(Cursor cursor) {
+            this.seq = cursor.getLong(0);
+            this.op = cursor.getInt(1);
+            this.uid = (cursor.isNull(2) ? null : cursor.getLong(2));
+            this.allow = cursor.getLong(3) == 1;
+            this.policy = (cursor.isNull(4) ? null : cursor.getInt(4));
+            this.args = cursor.getString(5);
+        }
+    }
+
+    public FirewallJournal(Context context) {
+        this.dbHelper = natDBHelper.getInstance(context);
+    }
+
+    /**
+     * Record a pending operation
+     * @return sequence number, or -1 if it couldn't be recorded
+     */
+    public long append(final int op, final Long uid, final boolean allow, final Integer policy, final String args) {
+        SQLiteStatement statement = this.dbHelper.getJournalInsertStatement();
+        synchronized (statement) {
+            statement.bindLong(1, op);
+            if (uid == null) {
+                statement.bindNull(2);
+            } else {
+                statement.bindLong(2, uid);
+            }
+            statement.bindLong(3, allow ? 1 : 0);
+            if (policy == null) {
+                statement.bindNull(4);
+            } else {
+                statement.bindLong(4, policy);
+            }
+            if (args == null) {
+                statement.bindNull(5);
+            } else {
+                statement.bindString(5, args);
+            }
+            statement.bindLong(6, STATE_PENDING);
+            statement.bindLong(7, System.currentTimeMillis());
+            try {
+                return statement.executeInsert();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Unable to record operation " + op, e);
+                return -1;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Mark entries as completed, in a single transaction
+     * @param seqs sequence numbers
+     * @param state STATE_APPLIED, STATE_FAILED or STATE_SUPERSEDED
+     */
+    public void complete(final List<Long> seqs, final int state) {
+        if (seqs.isEmpty()) return;
+
+        SQLiteStatement statement = this.dbHelper.getJournalStateStatement();
+        long now = System.currentTimeMillis();
+        try {
+            SQLiteDatabase db = this.dbHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                synchronized (statement) {
+                    for (Long seq : seqs) {
+                        statement.bindLong(1, state);
+                        statement.bindLong(2, now);
+                        statement.bindLong(3, seq);
+                        statement.executeUpdateDelete();
+                        statement.clearBindings();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to update journal", e);
+            return;
+        }
+
+        boolean compact;
+        synchronized (this) {
+            this.completed += seqs.size();
+            compact = (this.completed >= COMPACT_EVERY);
+            if (compact) this.completed = 0;
+        }
+        if (compact) compact();
+    }
+
+    /**
+     * @return operations which were never completed, in submission order
+     */
+    public List<Entry> getPending() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        try {
+            SQLiteDatabase db = this.dbHelper.getReadableDatabase();
+            Cursor cursor = db.rawQuery(natDBHelper.SELECT_JOURNAL_STATE, new String[]{String.valueOf(STATE_PENDING)});
+            try {
+                while (cursor.moveToNext()) {
+                    entries.add(new Entry(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to read journal", e);
+        }
+        return entries;
+    }
+
+    /**
+     * Drop completed entries, but the last ones. Pending entries are always kept.
+     */
+    public void compact() {
+        SQLiteStatement statement = this.dbHelper.getJournalCompactStatement();
+        synchronized (statement) {
+            statement.bindLong(1, STATE_PENDING);
+            statement.bindLong(2, KEEP);
+            try {
+                int removed = statement.executeUpdateDelete();
+                Log.d(TAG, "Compacted " + removed + " journal entries");
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Unable to compact journal", e);
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.ethack.orwall.lib;
+
+import org.ethack.orwall.lib.FirewallExecutor.Op;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.ethack.orwall.lib.FirewallExecutor.OP_BOOT;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_BROWSER;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_DEACTIVATE;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_DRIFT;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_LAN;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_PORTS;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_RECONCILE;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_RELOAD;
+import static org.ethack.orwall.lib.FirewallExecutor.OP_TETHER;
+import static org.ethack.orwall.lib.FirewallExecutor.PRIORITY_BACKGROUND;
+import static org.ethack.orwall.lib.FirewallExecutor.PRIORITY_CRITICAL;
+
+/**
+ * Operations waiting in FirewallExecutor, and the way they are merged while they wait.
+ * Not thread-safe: the executor guards it.
+ */
+class FirewallQueue {
+    private final LinkedList<Op> queue = new LinkedList<>();
+    // journal entries of operations coalesced away by the last add()
+    private ArrayList<Long> superseded = new ArrayList<>();
+    private long coalesced = 0;
+
+    /**
+     * Queue an operation, merging it with pending ones
+     * @param op new operation
+     * @return journal entries of operations which were dropped, as they don't need to be applied anymore
+     */
+    List<Long> add(final Op op) {
+        int before = this.queue.size();
+        if (coalesce(op)) {
+            this.queue.add(op);
+        }
+        this.coalesced += before + 1 - this.queue.size();
+        List<Long> dropped = this.superseded;
+        this.superseded = new ArrayList<>();
+        return dropped;
+    }
+
+    boolean isEmpty() {
+        return this.queue.isEmpty();
+    }
+
+    int size() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return number of operations dropped or merged while waiting
+     */
+    long getCoalescedCount() {
+        return this.coalesced;
+    }
+
+    /**
+     * Merge an operation with pending ones
+     * @param op new operation
+     * @return true if it must be queued
+     */
+    private boolean coalesce(final Op op) {
+        Iterator<Op> it;
+        switch (op.type) {
+            case OP_DEACTIVATE:
+                // everything is going away anyway
+                for (Op pending : this.queue) {
+                    supersede(pending);
+                }
+                drop(this.queue);
+                return true;
+
+            case OP_RELOAD:
+                // the whole ruleset is generated from preferences and NatRules again; tethering and
+                // the captive browser aren't part of it
+                for (it = this.queue.iterator(); it.hasNext(); ) {
+                    Op pending = it.next();
+                    if (pending.type != OP_TETHER && pending.type != OP_BROWSER) {
+                        if (pending.done != null) pending.done.run();
+                        supersede(pending);
+                        it.remove();
+                    }
+                }
+                return true;
+
+            case OP_BOOT:
+                // boot installs app rules and LAN rules from scratch
+                for (it = this.queue.descendingIterator(); it.hasNext(); ) {
+                    Op pending = it.next();
+                    if (pending.type == OP_DEACTIVATE) break;
+                    if (pending.type == OP_BOOT || pending.type == OP_RELOAD) {
+                        chain(pending, op.done);
+                        pending.seqs.addAll(op.seqs);
+                        return false;
+                    }
+                    if (pending.type == OP_LAN || (pending.type == OP_RECONCILE && pending.uid == null)) {
+                        if (pending.done != null) pending.done.run();
+                        supersede(pending);
+                        it.remove();
+                    }
+                }
+                return true;
+
+            case OP_RECONCILE:
+            case OP_LAN:
+            case OP_TETHER:
+            case OP_PORTS:
+            case OP_DRIFT:
+                // last state wins: reconciliation, LAN/tethering and port updates are idempotent,
+                // so an add followed by a remove ends up changing nothing
+                for (it = this.queue.descendingIterator(); it.hasNext(); ) {
+                    Op pending = it.next();
+                    if (pending.sameTarget(op)) {
+                        op.priority = Math.min(op.priority, pending.priority);
+                        chain(op, pending.done);
+                        op.seqs.addAll(pending.seqs);
+                        it.remove();
+                        break;
+                    }
+                    if (pending.priority == PRIORITY_CRITICAL) break;
+                }
+                return true;
+
+            default:
+                // toggles: a pending opposite toggle cancels out, a pending identical one is enough
+                for (it = this.queue.descendingIterator(); it.hasNext(); ) {
+                    Op pending = it.next();
+                    if (pending.priority == PRIORITY_CRITICAL) break;
+                    if (pending.sameTarget(op)) {
+                        if (pending.allow != op.allow) {
+                            supersede(pending);
+                            supersede(op);
+                            it.remove();
+                        } else {
+                            pending.seqs.addAll(op.seqs);
+                        }
+                        return false;
+                    }
+                }
+                return true;
+        }
+    }
+
+    private static void drop(final List<Op> ops) {
+        for (Op op : ops) {
+            if (op.done != null) op.done.run();
+        }
+        ops.clear();
+    }
+
+    private static void chain(final Op op, final Runnable done) {
+        if (done == null) return;
+        final Runnable previous = op.done;
+        op.done = (previous == null ? done : new Runnable() {
+            @Override
+            public void run() {
+                previous.run();
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Take pending operations of the most urgent lane, in submission order
+     */
+    ArrayList<Op> nextLane() {
+        int priority = PRIORITY_BACKGROUND;
+        for (Op op : this.queue) {
+            priority = Math.min(priority, op.priority);
+        }
+        ArrayList<Op> ops = new ArrayList<>();
+        for (Iterator<Op> it = this.queue.iterator(); it.hasNext(); ) {
+            Op op = it.next();
+            if (op.priority == priority) {
+                ops.add(op);
+                it.remove();
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Forget a pending operation which doesn't need to be applied anymore
+     */
+    private void supersede(final Op op) {
+        this.superseded.addAll(op.seqs);
+    }
+}
@@ -2,21 +2,37 @@ package org.ethack.orwall.lib;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.ethack.orwall.BackgroundProcess;
+import org.sufficientlysecure.rootcommands.SharedShell;
 import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandGroup;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.command.StatusCommand;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 public class Iptables {
     public final static String DIR_DST = "/system/etc/init.d";
@@ -25,10 +41,59 @@ public class Iptables {
     public final static String DST_FILE_1 = String.format("%s/91firewall", DIR_DST_1);
 
     private Context context;
-    private Boolean _supportComment;
-    private Boolean _supportWait;
+    private IptablesCapabilities _capabilities;
     private Integer _orbotUID;
-    private Shell shell = null;
+    private IptablesRestore batch = null;
+    private int batchDepth = 0;
+    private RuleSet sink = null;
+
+    private final static String[] SNAPSHOT_TABLES = {"filter", "nat", "mangle"};
+
+    /**
+     * Packet marks used in mark mode: one mangle rule per app tags its packets, nat and filter
+     * only have shared rules matching these bits. Android netd uses the low fwmark bits (network,
+     * permissions, VPN protection), so we keep to the highest ones.
+     */
+    public final static long MARK_TOR = 0x10000000L;
+    public final static long MARK_BYPASS = 0x20000000L;
+    public final static long MARK_LOCALHOST = 0x40000000L;
+    public final static long MARK_LAN = 0x80000000L;
+    public final static long MARK_MASK = 0xf0000000L;
+
+    /**
+     * Android "nobody" group, the one dnsmasq relays tethered DNS queries with. Used as a number:
+     * that's how iptables lists it, so the rule can be found again in snapshots.
+     */
+    private final static int GID_NOBODY = 9999;
+
+    /**
+     * Per-policy chains, ow_OUTPUT dispatching into them. ow_TOR exists in both filter and nat.
+     */
+    public final static String CHAIN_TOR = "ow_TOR";
+    public final static String CHAIN_BYPASS = "ow_BYPASS";
+    public final static String CHAIN_LOCAL = "ow_LOCAL";
+    private final static String[] SNAPSHOT_TABLES_V6 = {"filter"};
+
+    /**
+     * Chains holding orWall rules. reload() stages a new ruleset in shadow chains named with
+     * STAGING_SUFFIX, then swaps built-in chain jumps over to them.
+     */
+    private final static String[][] MANAGED_CHAINS = {
+            {"mangle", "ow_OUTPUT"},
+            {"nat", "ow_OUTPUT"}, {"nat", CHAIN_TOR},
+            {"filter", "ow_OUTPUT"}, {"filter", "ow_INPUT"}, {"filter", "ow_LAN"},
+            {"filter", CHAIN_TOR}, {"filter", CHAIN_BYPASS}, {"filter", CHAIN_LOCAL},
+    };
+    private final static Pattern MANAGED_NAME = Pattern.compile(
+            "(?<!\\w)(ow_OUTPUT|ow_INPUT|ow_LAN|" + CHAIN_TOR + "|" + CHAIN_BYPASS + "|" + CHAIN_LOCAL + ")(?!\\w)");
+    public final static String STAGING_SUFFIX = "_next";
+    /**
+     * Commit order of reload() jump swaps. Filter goes first: until nat and mangle follow, new
+     * filter chains may reject traffic old chains would have let through, never the other way.
+     */
+    private final static String[] SWAP_ORDER = {"filter", "mangle", "nat", "raw"};
+    // options carrying proxy ports
+    private final static Pattern PORT_OPTION = Pattern.compile("--(dport|to-ports) \\d+");
 
     /**
      * Construtor
@@ -39,16 +104,25 @@ public class Iptables {
         this.context = context;
     }
 
+    public IptablesCapabilities getCapabilities(){
+        if (_capabilities == null)
+            _capabilities = IptablesCapabilities.get(context);
+        return _capabilities;
+    }
+
     public boolean getSupportComment(){
-        if (_supportComment == null)
-            _supportComment = runCommand("cat /proc/net/ip_tables_matches | grep -q comment");
-        return _supportComment;
+        return getCapabilities().has(IptablesCapabilities.COMMENT);
     }
 
     public boolean getSupportWait(){
-        if (_supportWait == null)
-            _supportWait = runCommand("iptables --help | grep -q -e \"--wait\"");
-        return _supportWait;
+        return getCapabilities().has(IptablesCapabilities.WAIT);
+    }
+
+    /**
+     * @return true if app rules are dispatched through packet marks
+     */
+    public boolean isMarkMode(){
+        return Preferences.isMarkModeEnabled(context) && getCapabilities().has(IptablesCapabilities.MARK);
     }
 
     public int getOrbotUID(){
@@ -69,49 +143,415 @@ public class Iptables {
      * @return true if success
      */
     private boolean runCommand(final String command) {
-        if (shell == null){
-            try {
-                shell = Shell.startRootShell();
-            } catch (IOException e) {
-                Log.e("Shell", "NO shell !");
+        List<Command> done = executeAll(Arrays.asList(command));
+        return (done != null && done.get(0).getExitCode() == 0);
+    }
+
+    /**
+     * run a simple command, and keep its output
+     *
+     * @param command
+     * @return finished command, or null if it couldn't be run
+     */
+    private SimpleCommand execute(final String command) {
+        IptablesSnapshot.invalidate();
+        SimpleCommand cmd = new SimpleCommand(command);
+        boolean done = run(Arrays.<Command>asList(cmd));
+        IptablesSnapshot.invalidate();
+        if (done) {
+            return cmd;
+        }
+        Log.e("Shell", command);
+        return null;
+    }
+
+    /**
+     * run several commands at once: they are pipelined in the shell, and we only wait for
+     * the whole group to finish. Their output is discarded, only exit codes are kept.
+     *
+     * @param commands
+     * @return finished commands, in the same order, or null if they couldn't be run
+     */
+    private List<Command> executeAll(final List<String> commands) {
+        IptablesSnapshot.invalidate();
+        ArrayList<Command> group = new ArrayList<>();
+        for (String command : commands) {
+            group.add(new StatusCommand(command));
+        }
+        boolean done = run(group);
+        IptablesSnapshot.invalidate();
+        return (done ? group : null);
+    }
+
+    /**
+     * run commands in the shared shell, and wait for them to finish
+     *
+     * @param group
+     * @return false if they couldn't be run
+     */
+    private boolean run(final List<Command> group) {
+        Shell shell;
+        try {
+            shell = SharedShell.acquire();
+        } catch (IOException e) {
+            Log.e("Shell", "NO shell !");
+            return false;
+        }
+
+        try {
+            shell.addAll(group).waitForFinish();
+            return true;
+        } catch (IOException e) {
+            Log.e("Shell", "Unable to run simple commands");
+            Log.e("Trace", e.getMessage());
+        } catch (TimeoutException e) {
+            Log.e("Shell", "A timeout was reached");
+            Log.e("Shell", e.getMessage());
+        } finally {
+            SharedShell.release(shell);
+        }
+        return false;
+    }
+
+    /**
+     * Get current IPv4 ruleset. One "iptables -S" per table is run, unless a recent enough
+     * snapshot is cached.
+     *
+     * @return snapshot, or null if rules couldn't be listed
+     */
+    public IptablesSnapshot getSnapshot() {
+        return getSnapshot(Constants.IPTABLES, SNAPSHOT_TABLES);
+    }
+
+    public IptablesSnapshot getSnapshotV6() {
+        return getSnapshot(Constants.IP6TABLES, SNAPSHOT_TABLES_V6);
+    }
+
+    private IptablesSnapshot getSnapshot(final String binary, final String[] tables) {
+        IptablesSnapshot snapshot = IptablesSnapshot.getCached(binary);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        long generation = IptablesSnapshot.getGeneration();
+        ArrayList<Command> group = new ArrayList<>();
+        for (String table : tables) {
+            group.add(new SimpleCommand(iptablesCommand(binary, String.format("-t %s -S", table))));
+        }
+        if (!run(group)) {
+            return null;
+        }
+
+        snapshot = new IptablesSnapshot();
+        for (int i = 0; i < tables.length; i++) {
+            SimpleCommand cmd = (SimpleCommand) group.get(i);
+            if (cmd.getExitCode() == 0) {
+                snapshot.parse(tables[i], cmd.getOutput());
+            } else {
+                Log.e("getSnapshot", String.format("Unable to list %s table", tables[i]));
+            }
+        }
+        if (!snapshot.hasTable("filter")) {
+            return null;
+        }
+        if (!IptablesSnapshot.putCached(binary, snapshot, generation)) {
+            Log.d("getSnapshot", "Rules changed while listing them, not caching");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Checks if a rule exists, from the ruleset snapshot if possible
+     * @param binary iptables or ip6tables
+     * @param rule rule, with "-C"
+     * @return true if the rule exists
+     */
+    private boolean ruleExists(final String binary, final String rule) {
+        IptablesSnapshot snapshot = (binary.equals(Constants.IP6TABLES) ? getSnapshotV6() : getSnapshot());
+        if (snapshot != null) {
+            return snapshot.contains(rule);
+        }
+        return runCommand(iptablesCommand(binary, rule));
+    }
+
+    /**
+     * Start queuing rules instead of applying them one by one.
+     * Batches may be nested: rules are applied when the outermost batch is committed.
+     */
+    public void beginBatch() {
+        beginBatch(null);
+    }
+
+    /**
+     * Same as beginBatch()
+     * @param tableOrder commit order of tables, or null for the default one; only used when this
+     *                   is the outermost batch
+     */
+    private void beginBatch(final String[] tableOrder) {
+        if (this.batch == null) {
+            this.batch = (tableOrder == null ? new IptablesRestore() : new IptablesRestore(tableOrder));
+        }
+        this.batchDepth++;
+    }
+
+    /**
+     * @return number of rules queued in the current batch
+     */
+    public int getBatchSize() {
+        return (this.batch == null ? 0 : this.batch.size());
+    }
+
+    /**
+     * @param from index of the first rule to return, e.g. a previous getBatchSize()
+     * @return rules queued in the current batch since that index
+     */
+    public List<String> getBatchRules(final int from) {
+        if (this.batch == null) return new ArrayList<>();
+        List<String> rules = this.batch.getRules();
+        return rules.subList(Math.min(from, rules.size()), rules.size());
+    }
+
+    /**
+     * Apply rules queued since beginBatch() which aren't already in place, so that committing
+     * the same batch again changes nothing.
+     *
+     * @return number of rules skipped, or -1 if the current ruleset couldn't be read (then every
+     * rule was applied)
+     */
+    public int commitMissing() {
+        return commitMissing(null);
+    }
+
+    /**
+     * Same as commitMissing()
+     * @param failed receives rules that couldn't be applied, or null
+     */
+    public int commitMissing(final List<String> failed) {
+        int skipped = -1;
+        if (this.batchDepth == 1 && this.batch != null) {
+            IptablesSnapshot current = getSnapshot();
+            if (current != null) {
+                IptablesRestore missing = new IptablesRestore();
+                for (String rule : this.batch.getRules()) {
+                    if (!current.isApplied(rule)) {
+                        missing.add(rule);
+                    }
+                }
+                skipped = this.batch.size() - missing.size();
+                this.batch = missing;
             }
         }
+        List<String> errors = commitBatch();
+        for (String rule : errors) {
+            Log.e("commitMissing", "Unable to apply rule: " + rule);
+        }
+        if (failed != null) {
+            failed.addAll(errors);
+        }
+        return skipped;
+    }
 
-        if (this.shell != null) {
-            SimpleCommand cmd = new SimpleCommand(command);
+    /**
+     * Apply every rule queued since beginBatch().
+     * The whole batch goes through a single iptables-restore call; if iptables-restore is missing,
+     * we fall back to one iptables call per rule.
+     *
+     * @return rules that couldn't be applied (empty on success, or while still nested)
+     */
+    public List<String> commitBatch() {
+        ArrayList<String> failed = new ArrayList<>();
+        if (this.batchDepth > 0) this.batchDepth--;
+        if (this.batchDepth > 0 || this.batch == null) {
+            return failed;
+        }
+
+        IptablesRestore restore = this.batch;
+        this.batch = null;
+        if (restore.isEmpty()) {
+            return failed;
+        }
+
+        if (!getCapabilities().has(IptablesCapabilities.RESTORE)) {
+            Log.d("commitBatch", "No iptables-restore, applying rules one by one");
+            applyEach(restore.getRules(), failed);
+            return failed;
+        }
+
+        File rulesFile = new File(context.getCacheDir(), "orwall.rules");
+        String command = String.format("%s --noflush < %s", Constants.IPTABLES_RESTORE, rulesFile.getAbsolutePath());
+
+        while (!restore.isEmpty()) {
             try {
-                this.shell.add(cmd).waitForFinish();
-                return (cmd.getExitCode() == 0);
+                FileWriter writer = new FileWriter(rulesFile);
+                writer.write(restore.render());
+                writer.close();
             } catch (IOException e) {
-                Log.e("Shell", "Unable to run simple command");
-                Log.e("Shell", command);
-                Log.e("Trace", e.getMessage());
-            } catch (TimeoutException e) {
-                Log.e("Shell", "A timeout was reached");
-                Log.e("Shell", e.getMessage());
+                Log.e("commitBatch", "Unable to write rules file: " + e.getMessage());
+                applyEach(restore.getRules(), failed);
+                break;
+            }
+
+            SimpleCommand cmd = execute(command);
+            if (cmd == null) {
+                failed.addAll(restore.getRules());
+                break;
+            }
+            if (cmd.getExitCode() == 0) {
+                break;
+            }
+
+            int line = IptablesRestore.parseFailedLine(cmd.getOutput());
+            boolean committed = restore.hasCommitBefore(line);
+            String rule = restore.fail(line);
+            if (rule == null) {
+                // can't tell which line failed, nor what was committed.
+                // Go the slow way, with what isn't in place yet only.
+                Log.e("commitBatch", "iptables-restore failed: " + cmd.getOutput());
+                applyEach(getUnapplied(restore.getRules()), failed);
+                break;
+            }
+            Log.e("commitBatch", "Unable to apply rule: " + rule);
+            failed.add(rule);
+
+            if (committed) {
+                // legacy iptables-restore committed the tables before that line, nf_tables didn't
+                IptablesSnapshot.invalidate();
+                IptablesSnapshot current = getSnapshot();
+                if (current == null) {
+                    Log.e("commitBatch", "Unable to read rules, giving up on the rest of the batch");
+                    failed.addAll(restore.getRules());
+                    break;
+                }
+                restore.removeApplied(current);
+            }
+        }
+
+        rulesFile.delete();
+        return failed;
+    }
+
+    /**
+     * Filter out rules which are already in place, according to a fresh snapshot
+     * @param rules rules to check
+     * @return rules still to apply; all of them if the current ruleset couldn't be read
+     */
+    private List<String> getUnapplied(final List<String> rules) {
+        IptablesSnapshot.invalidate();
+        IptablesSnapshot current = getSnapshot();
+        if (current == null) {
+            Log.e("getUnapplied", "Unable to read rules, some of them may be applied twice");
+            return rules;
+        }
+        ArrayList<String> unapplied = new ArrayList<>();
+        for (String rule : rules) {
+            if (!current.isApplied(rule)) {
+                unapplied.add(rule);
+            }
+        }
+        return unapplied;
+    }
+
+    /**
+     * Apply rules one by one, outside of any batch.
+     * Rules are still pipelined in the shell, and their exit codes collected at the end.
+     * @param rules rules to apply
+     * @param failed receives rules that couldn't be applied
+     */
+    private void applyEach(final List<String> rules, final List<String> failed) {
+        applyEach(Constants.IPTABLES, rules, failed);
+    }
+
+    private void applyEach(final String binary, final List<String> rules, final List<String> failed) {
+        ArrayList<String> commands = new ArrayList<>();
+        for (String rule : rules) {
+            commands.add(iptablesCommand(binary, rule));
+        }
+
+        List<Command> done = executeAll(commands);
+        for (int i = 0; i < rules.size(); i++) {
+            if (done == null || done.get(i).getExitCode() != 0) {
+                Log.e("applyEach", "Unable to apply rule: " + rules.get(i));
+                failed.add(rules.get(i));
             }
         }
-        return false;
     }
 
     /**
      * This method is called upon device boot, or when we re-enable orWall
      * It adds new chains, and some rules in order to get iptables up n'running.
+     * Only what is missing is applied: it may be called any number of times.
+     *
+     * @return number of rules which were already in place
+     */
+    public int boot() {
+        return boot(true);
+    }
+
+    /**
+     * Initialize every rule.
+     * @param withApps false to only install main chains, Orbot and the lock removal, leaving app
+     *                 rules to reconcileApps(): Tor gets connectivity sooner, other apps being
+     *                 rejected until their rules are in place
+     * @return number of rules which were already in place
      */
-    public void boot() {
+    public int boot(final boolean withApps) {
+        long start = SystemClock.elapsedRealtime();
         Log.d("Boot: ", "Deactivate some stuff at boot time in order to prevent crashes");
         Preferences.setBrowserEnabled(context, false);
         Preferences.setOrwallEnabled(context, true);
 
         // initialize main chains
         initIPv6();
+
+        beginBatch();
         initOutputs();
         initInput();
 
         // get lan subnet
         LANPolicy();
 
+        initOptions();
+
+        ArrayList<AppRule> rules = new ArrayList<>();
+        if (withApps) {
+            Log.d("Boot: ", "Preparing NAT stuff");
+            NatRules natRules = new NatRules(context);
+            Log.d("Boot: ", "Get NAT rules...");
+            rules = natRules.getAllRules();
+            Log.d("Boot: ", "Length received: " + String.valueOf(rules.size()));
+        }
 
+        // app rules are compiled at once, and go in the same batch as init rules: the boot lock
+        // goes away in the very same iptables-restore commit as filter app rules, after nat ones.
+        RuleSet wanted = compileAppRules(rules);
+        IptablesSnapshot current = getSnapshot();
+        if (!withApps) {
+            Log.d("Boot: ", "App rules are left to reconcileApps()");
+        } else if (current != null) {
+            RuleSet managed = installedAppRules(current);
+            managed.addAll(wanted);
+            for (String change : wanted.diff(managed, current)) {
+                genericRule(change);
+            }
+        } else {
+            for (String rule : wanted.getRules()) {
+                genericRule(rule);
+            }
+        }
+        int skipped = commitMissing();
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Preferences.setLastBoot(context, elapsed, wanted.size());
+        Log.d("Boot: ", String.format(Locale.US,
+                "Protected in %d ms: %d app(s), %d app rule(s), %d rule(s) already in place",
+                elapsed, rules.size(), wanted.size(), skipped));
+        return Math.max(skipped, 0);
+    }
+
+    /**
+     * Rules for options enabled in preferences: SIP, ADB and SSH
+     */
+    private void initOptions() {
         if (Preferences.isSIPEnabled(this.context)) {
             Long sip_uid = Long.valueOf(Preferences.getSIPApp(this.context));
             if (sip_uid != 0) {
@@ -127,23 +567,6 @@ public class Iptables {
         if (Preferences.isSSHEnabled(context)) {
             enableSSH(true);
         }
-
-        Log.d("Boot: ", "Finished initialization");
-
-        Log.d("Boot: ", "Preparing NAT stuff");
-        NatRules natRules = new NatRules(context);
-        Log.d("Boot: ", "Get NAT rules...");
-        ArrayList<AppRule> rules = natRules.getAllRules();
-        Log.d("Boot: ", "Length received: " + String.valueOf(rules.size()));
-
-        // Use internal queuing
-        final Intent bgpProcess = new Intent(this.context, BackgroundProcess.class);
-
-        for (AppRule rule : rules) {
-            rule.install(this.context, bgpProcess);
-            Log.d("Boot: ", "pushed new app in queue: " + rule.getPkgName());
-        }
-        Log.d("Boot: ", "Finished NAT stuff");
     }
 
     /**
@@ -175,12 +598,34 @@ public class Iptables {
                 "-F ow_LAN",
                 "-X ow_LAN"
         };
+        beginBatch();
         for (String rule : rules) {
             if (!genericRule(rule)) {
                 Log.e("deactivate", "Unable to remove rule");
                 Log.e("deactivate", rule);
             }
         }
+        // mode-dependent chains, whatever the current mode. ow_OUTPUT is gone, nothing refers to them.
+        IptablesSnapshot current = getSnapshot();
+        if (current == null || current.hasChain("mangle", "ow_OUTPUT")) {
+            genericRule("-t mangle -D OUTPUT -j ow_OUTPUT");
+            genericRule("-t mangle -F ow_OUTPUT");
+            genericRule("-t mangle -X ow_OUTPUT");
+        }
+        String[][] policyChains = {
+                {"filter", CHAIN_TOR}, {"filter", CHAIN_BYPASS}, {"filter", CHAIN_LOCAL}, {"nat", CHAIN_TOR}
+        };
+        for (String[] chain : policyChains) {
+            if (current == null || current.hasChain(chain[0], chain[1])) {
+                genericRule(String.format("-t %s -F %s", chain[0], chain[1]));
+                genericRule(String.format("-t %s -X %s", chain[0], chain[1]));
+            }
+        }
+        // leftovers of an interrupted reload()
+        if (current != null) {
+            dropStaged(current);
+        }
+        commitBatch();
 
         // subnet & tethering is no more in iptables
         Preferences.cleanIptablesPreferences(context);
@@ -195,10 +640,452 @@ public class Iptables {
                 "-D OUTPUT -j REJECT",
                 "-D FORWARD -j REJECT"
         };
+        ArrayList<String> failed = new ArrayList<>();
+        applyEach(Constants.IP6TABLES, Arrays.asList(rules), failed);
+        for (String rule : failed) {
+            Log.e("deactivate", "Unable to remove IPv6 rule");
+            Log.e("deactivate", rule);
+        }
+    }
+
+    /**
+     * Replace the whole ruleset without any gap.
+     * The new ruleset is built as boot() would on a clean firewall, in shadow chains (ow_OUTPUT_next
+     * and so on). Once they are validated, the jumps from built-in chains are replaced in place,
+     * all of them in a single iptables-restore input; once every jump is checked, old chains are
+     * dropped, and shadow chains get their usual names. Packets see either the old ruleset or the new one, whatever its size.
+     *
+     * @return false if the new ruleset couldn't be installed; the old one is then left in place,
+     * unless the swap itself failed
+     */
+    public boolean reload() {
+        long start = SystemClock.elapsedRealtime();
+        IptablesSnapshot current = getSnapshot();
+        if (current == null) {
+            Log.e("reload", "Unable to get current rules");
+            return false;
+        }
+
+        Preferences.setBrowserEnabled(context, false);
+        Preferences.setOrwallEnabled(context, true);
+        initIPv6();
+
+        // rules of our chains go to shadow chains, jumps and built-in chain rules wait for the swap
+        ArrayList<String> staged = new ArrayList<>();
+        ArrayList<String[]> jumps = new ArrayList<>();
+        ArrayList<String> builtin = new ArrayList<>();
+        ArrayList<String[]> created = new ArrayList<>();
+        Map<String, Integer> expected = new HashMap<>();
+        for (String rule : generateRules()) {
+            List<String> tokens = IptablesSnapshot.tokenize(IptablesRestore.stripTable(rule));
+            if (tokens.size() < 2) continue;
+            String table = IptablesRestore.getTable(rule);
+            String verb = tokens.get(0);
+            String chain = tokens.get(1);
+
+            if (isManaged(chain)) {
+                staged.add(MANAGED_NAME.matcher(rule).replaceAll("$1" + STAGING_SUFFIX));
+                String key = table + " " + chain;
+                if (verb.equals("-N")) {
+                    created.add(new String[]{table, chain});
+                    expected.put(key, 0);
+                } else if (verb.equals("-A") || verb.equals("-I")) {
+                    Integer count = expected.get(key);
+                    expected.put(key, (count == null ? 0 : count) + 1);
+                }
+            } else if (verb.equals("-A") && tokens.size() == 4 && tokens.get(2).equals("-j") && isManaged(tokens.get(3))) {
+                jumps.add(new String[]{table, chain, tokens.get(3)});
+            } else {
+                builtin.add(rule);
+            }
+        }
+
+        // stage
+        beginBatch();
+        dropStaged(current);
+        for (String rule : staged) {
+            genericRule(rule);
+        }
+        List<String> failed = commitBatch();
+        IptablesSnapshot next = getSnapshot();
+        if (!failed.isEmpty() || next == null || !isStaged(next, expected)) {
+            Log.e("reload", "Unable to stage the new ruleset, keeping the current one");
+            if (next != null) {
+                beginBatch();
+                dropStaged(next);
+                commitBatch();
+            }
+            return false;
+        }
+
+        // swap: replacing a rule is atomic, and leaves positions untouched. Every jump goes in the
+        // same iptables-restore input, one commit per table, so that old and new chains of
+        // different tables are mixed for as short as possible.
+        beginBatch(SWAP_ORDER);
+        ArrayList<String> swaps = new ArrayList<>();
+        ArrayList<String> appended = new ArrayList<>();
+        for (String[] jump : jumps) {
+            int index = next.indexOf(String.format("-t %s -A %s -j %s", jump[0], jump[1], jump[2]));
+            if (index >= 0) {
+                genericRule(String.format(Locale.US, "-t %s -R %s %d -j %s%s", jump[0], jump[1], index + 1, jump[2], STAGING_SUFFIX));
+            } else {
+                appended.add(String.format("-t %s -A %s -j %s%s", jump[0], jump[1], jump[2], STAGING_SUFFIX));
+            }
+            swaps.add(String.format("-t %s -A %s -j %s%s", jump[0], jump[1], jump[2], STAGING_SUFFIX));
+        }
+        for (String rule : appended) {
+            genericRule(rule);
+        }
+        failed = commitBatch();
+        IptablesSnapshot swapped = getSnapshot();
+        if (!failed.isEmpty() || swapped == null || !containsAll(swapped, swaps)) {
+            Log.e("reload", "Unable to switch to the new ruleset");
+            return false;
+        }
+
+        beginBatch();
+        for (String rule : builtin) {
+            if (!swapped.isApplied(rule)) {
+                genericRule(rule);
+            }
+        }
+        failed = commitBatch();
+        for (String rule : failed) {
+            Log.e("reload", "Unable to apply rule: " + rule);
+        }
+
+        // old chains aren't referenced anymore, except by jumps we don't generate now
+        beginBatch();
+        for (String[] chain : MANAGED_CHAINS) {
+            for (String builtinChain : new String[]{"INPUT", "OUTPUT"}) {
+                String jump = String.format("-t %s -A %s -j %s", chain[0], builtinChain, chain[1]);
+                if (next.contains(jump) && !containsJump(jumps, chain[0], builtinChain, chain[1])) {
+                    genericRule(String.format("-t %s -D %s -j %s", chain[0], builtinChain, chain[1]));
+                }
+            }
+        }
+        for (String[] chain : MANAGED_CHAINS) {
+            if (next.hasChain(chain[0], chain[1])) {
+                genericRule(String.format("-t %s -F %s", chain[0], chain[1]));
+            }
+        }
+        for (String[] chain : MANAGED_CHAINS) {
+            if (next.hasChain(chain[0], chain[1])) {
+                genericRule(String.format("-t %s -X %s", chain[0], chain[1]));
+            }
+        }
+        for (String[] chain : created) {
+            genericRule(String.format("-t %s -E %s%s %s", chain[0], chain[1], STAGING_SUFFIX, chain[1]));
+        }
+        List<String> leftovers = commitBatch();
+        for (String rule : leftovers) {
+            Log.e("reload", "Unable to clean up: " + rule);
+        }
+
+        Log.d("reload", String.format(Locale.US, "Ruleset replaced in %d ms: %d rule(s) staged",
+                SystemClock.elapsedRealtime() - start, staged.size()));
+        return failed.isEmpty() && leftovers.isEmpty();
+    }
+
+    /**
+     * Generate the whole ruleset, as boot() would apply it on a clean firewall
+     * @return rules, in application order
+     */
+    private List<String> generateRules() {
+        IptablesRestore outer = this.batch;
+        int outerDepth = this.batchDepth;
+        this.batch = null;
+        this.batchDepth = 0;
+
+        beginBatch();
+        try {
+            initOutputs();
+            initInput();
+
+            String subnet = NetworkHelper.getSubnet(this.context);
+            if (subnet != null) {
+                LanNoNat(subnet, true);
+            }
+            Preferences.setCurrentSubnet(context, subnet);
+            Set<String> tethered = Preferences.getTetherInterfaces(context);
+            if (tethered != null) {
+                for (String intf : tethered) {
+                    tether(true, intf);
+                }
+            }
+            initOptions();
+            if (Preferences.isBrowserEnabled(context)) {
+                Long browser_uid = Long.valueOf(Preferences.getBrowserApp(context));
+                if (browser_uid != 0) {
+                    manageCaptiveBrowser(true, browser_uid);
+                }
+            }
+
+            for (String rule : compileAppRules(new NatRules(context).getAllRules()).getRules()) {
+                genericRule(rule);
+            }
+            return this.batch.getRules();
+        } finally {
+            this.batch = outer;
+            this.batchDepth = outerDepth;
+        }
+    }
+
+    /**
+     * Repair rules if they aren't the expected ones anymore.
+     * A fingerprint of our chains, of the jumps to them and of built-in chain policies is compared
+     * with the one of the ruleset we would generate now; on mismatch, unexpected rules are removed
+     * from our chains and missing ones are inserted back at their expected position, nothing else.
+     * Installed rules are counted: a duplicated rule is a mismatch, and extra copies are removed.
+     * Rules order isn't part of the fingerprint, as app rules and runtime toggles legitimately end up
+     * in another order than the generated one: a rule moved within its chain, e.g. a REJECT moved
+     * before the fast path, isn't detected.
+     *
+     * @return number of changes applied, 0 if rules are in sync, -1 on error
+     */
+    public int reconcileDrift() {
+        long start = SystemClock.elapsedRealtime();
+        IptablesSnapshot current = getSnapshot();
+        if (current == null) {
+            Log.e("reconcileDrift", "Unable to get current rules");
+            return -1;
+        }
+
+        List<String> expected = generateRules();
+        TreeSet<String> expectedKeys = new TreeSet<>();
+        RuleSet wanted = new RuleSet();
+        for (String rule : expected) {
+            List<String> tokens = IptablesSnapshot.tokenize(IptablesRestore.stripTable(rule));
+            if (tokens.size() < 2) continue;
+            String table = IptablesRestore.getTable(rule);
+            String verb = tokens.get(0);
+            String chain = tokens.get(1);
+            if (verb.equals("-N") && isManaged(chain)) {
+                expectedKeys.add(String.format("%s %s", table, chain));
+            } else if (verb.equals("-P") && tokens.size() > 2) {
+                expectedKeys.add(String.format("%s %s -P %s", table, chain, tokens.get(2)));
+            } else if ((verb.equals("-A") || verb.equals("-I")) && (isManaged(chain) || isJump(tokens))) {
+                expectedKeys.add(RuleSet.key(rule));
+                wanted.add(rule);
+            }
+        }
+
+        // a list, not a set: duplicated rules must change the fingerprint
+        ArrayList<String> installedKeys = new ArrayList<>();
+        RuleSet installed = new RuleSet();
+        // key -> how many times it is listed, and the chain it's listed in
+        Map<String, Integer> copies = new HashMap<>();
+        Map<String, String[]> listedIn = new HashMap<>();
+        for (String[] chain : MANAGED_CHAINS) {
+            if (!current.hasChain(chain[0], chain[1])) continue;
+            installedKeys.add(String.format("%s %s", chain[0], chain[1]));
+            for (String rule : current.getRules(chain[0], chain[1])) {
+                String listed = String.format("-t %s -A %s %s", chain[0], chain[1], rule);
+                String key = RuleSet.key(listed);
+                installedKeys.add(key);
+                installed.add(listed);
+                Integer count = copies.get(key);
+                copies.put(key, (count == null ? 0 : count) + 1);
+                listedIn.put(key, new String[]{chain[0], chain[1], rule});
+            }
+        }
+        for (String table : SNAPSHOT_TABLES) {
+            for (String builtinChain : new String[]{"INPUT", "OUTPUT"}) {
+                String policy = current.getPolicy(table, builtinChain);
+                if (policy != null && expectedKeys.contains(String.format("%s %s -P %s", table, builtinChain, policy))) {
+                    installedKeys.add(String.format("%s %s -P %s", table, builtinChain, policy));
+                }
+                for (String rule : current.getRules(table, builtinChain)) {
+                    String listed = String.format("-t %s -A %s %s", table, builtinChain, rule);
+                    if (isJump(IptablesSnapshot.tokenize(IptablesRestore.stripTable(listed)))) {
+                        String key = RuleSet.key(listed);
+                        installedKeys.add(key);
+                        Integer count = copies.get(key);
+                        copies.put(key, (count == null ? 0 : count) + 1);
+                        listedIn.put(key, new String[]{table, builtinChain, rule});
+                    }
+                }
+            }
+        }
+
+        Collections.sort(installedKeys);
+        String fingerprint = fingerprint(installedKeys);
+        if (fingerprint.equals(fingerprint(expectedKeys))) {
+            Log.d("reconcileDrift", String.format(Locale.US, "Rules in sync (%s), checked in %d ms",
+                    fingerprint, SystemClock.elapsedRealtime() - start));
+            return 0;
+        }
+
+        // our chains hold nothing but what we generate: whatever else is there goes away
+        installed.addAll(wanted);
+        Map<String, List<String>> layout = new HashMap<>();
+        beginBatch();
+        for (String change : wanted.diff(installed, current)) {
+            if (change.contains(" -D ")) {
+                genericRule(change);
+                List<String> tokens = IptablesSnapshot.tokenize(IptablesRestore.stripTable(change));
+                getLayout(layout, current, IptablesRestore.getTable(change), tokens.get(1)).remove(RuleSet.key(change));
+            }
+        }
+        // a single copy of each rule: the diff above only deletes one copy of unexpected rules
+        for (Map.Entry<String, Integer> entry : copies.entrySet()) {
+            String[] where = listedIn.get(entry.getKey());
+            for (int i = 1; i < entry.getValue(); i++) {
+                genericRule(String.format("-t %s -D %s %s", where[0], where[1], where[2]));
+                getLayout(layout, current, where[0], where[1]).remove(entry.getKey());
+            }
+        }
+        int deletions = this.batch.size();
+        // missing rules go back to their place: appended, they would come after the rules they
+        // must precede, like the fast path or the REJECT ones
+        Map<String, String> previous = new HashMap<>();
+        for (String rule : expected) {
+            List<String> tokens = IptablesSnapshot.tokenize(IptablesRestore.stripTable(rule));
+            if (tokens.size() < 2 || !tokens.get(0).equals("-A")) {
+                genericRule(rule);
+                continue;
+            }
+            String table = IptablesRestore.getTable(rule);
+            String chain = tokens.get(1);
+            String key = RuleSet.key(rule);
+            List<String> rules = getLayout(layout, current, table, chain);
+            if (!rules.contains(key)) {
+                String before = previous.get(table + " " + chain);
+                int position = (before == null ? -1 : rules.indexOf(before));
+                if (position < 0 && !isManaged(chain)) {
+                    // built-in chain: no known rule to follow, go at the end as boot() does
+                    genericRule(rule);
+                    rules.add(key);
+                } else {
+                    genericRule(insertAt(rule, chain, position + 2));
+                    rules.add(position + 1, key);
+                }
+            }
+            previous.put(table + " " + chain, key);
+        }
+        int queued = this.batch.size();
+        int skipped = commitMissing();
+        int changes = (skipped < 0 ? queued : queued - skipped);
+
+        if (changes > 0) {
+            Preferences.incDriftRepairs(context);
+        }
+        Log.d("reconcileDrift", String.format(Locale.US, "Rules out of sync: %d change(s) applied, %d deletion(s), in %d ms",
+                changes, deletions, SystemClock.elapsedRealtime() - start));
+        return changes;
+    }
+
+    /**
+     * Rules of a chain, by RuleSet key, as they'll be once the pending drift repairs are applied
+     * @param layout "table chain" -> rule keys, filled from the snapshot on first use
+     */
+    private static List<String> getLayout(final Map<String, List<String>> layout, final IptablesSnapshot current,
+                                          final String table, final String chain) {
+        String key = table + " " + chain;
+        List<String> rules = layout.get(key);
+        if (rules == null) {
+            rules = new ArrayList<>();
+            for (String listed : current.getRules(table, chain)) {
+                rules.add(RuleSet.key(String.format("-t %s -A %s %s", table, chain, listed)));
+            }
+            layout.put(key, rules);
+        }
+        return rules;
+    }
+
+    /**
+     * Turn "-A chain spec" into "-I chain position spec"
+     * @param position position in the chain, starting at 1
+     */
+    private static String insertAt(final String rule, final String chain, final int position) {
+        String append = "-A " + chain;
+        int index = rule.indexOf(append);
+        return String.format(Locale.US, "%s-I %s %d%s",
+                rule.substring(0, index), chain, position, rule.substring(index + append.length()));
+    }
+
+    /**
+     * @return true for jumps from built-in chains to our chains, e.g. "-A OUTPUT -j ow_OUTPUT"
+     */
+    private static boolean isJump(final List<String> tokens) {
+        return tokens.size() == 4 && !isManaged(tokens.get(1)) && tokens.get(2).equals("-j") && isManaged(tokens.get(3));
+    }
+
+    private static String fingerprint(final Collection<String> keys) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            for (String key : keys) {
+                md.update(key.getBytes("UTF-8"));
+                md.update((byte) '\n');
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // can't happen: MD5 and UTF-8 are always there
+            return String.valueOf(keys.hashCode());
+        }
+    }
+
+    private static boolean isManaged(final String chain) {
+        return MANAGED_NAME.matcher(chain).matches();
+    }
+
+    private static boolean containsAll(final IptablesSnapshot snapshot, final List<String> rules) {
         for (String rule : rules) {
-            if (!genericRuleV6(rule)) {
-                Log.e("deactivate", "Unable to remove IPv6 rule");
-                Log.e("deactivate", rule);
+            if (!snapshot.contains(rule)) {
+                Log.e("reload", "Missing rule: " + rule);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsJump(final List<String[]> jumps, final String table, final String chain, final String target) {
+        for (String[] jump : jumps) {
+            if (jump[0].equals(table) && jump[1].equals(chain) && jump[2].equals(target)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check shadow chains hold what we staged
+     * @param expected "table chain" -> number of rules
+     */
+    private static boolean isStaged(final IptablesSnapshot snapshot, final Map<String, Integer> expected) {
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            String[] key = entry.getKey().split(" ");
+            String chain = key[1] + STAGING_SUFFIX;
+            if (!snapshot.hasChain(key[0], chain) || snapshot.getRules(key[0], chain).size() != entry.getValue()) {
+                Log.e("reload", String.format("Shadow chain %s/%s doesn't hold the expected rules", key[0], chain));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue the removal of shadow chains, and of jumps to them
+     */
+    private void dropStaged(final IptablesSnapshot current) {
+        for (String[] chain : MANAGED_CHAINS) {
+            String staged = chain[1] + STAGING_SUFFIX;
+            for (String builtinChain : new String[]{"INPUT", "OUTPUT"}) {
+                if (current.contains(String.format("-t %s -A %s -j %s", chain[0], builtinChain, staged))) {
+                    genericRule(String.format("-t %s -D %s -j %s", chain[0], builtinChain, staged));
+                }
+            }
+        }
+        for (String[] chain : MANAGED_CHAINS) {
+            if (current.hasChain(chain[0], chain[1] + STAGING_SUFFIX)) {
+                genericRule(String.format("-t %s -F %s%s", chain[0], chain[1], STAGING_SUFFIX));
+            }
+        }
+        for (String[] chain : MANAGED_CHAINS) {
+            if (current.hasChain(chain[0], chain[1] + STAGING_SUFFIX)) {
+                genericRule(String.format("-t %s -X %s%s", chain[0], chain[1], STAGING_SUFFIX));
             }
         }
     }
@@ -217,29 +1104,37 @@ public class Iptables {
         return iptables.exists();
     }
 
+    public static boolean iptablesRestoreExists() {
+        File iptablesRestore = new File(Constants.IPTABLES_RESTORE);
+        return iptablesRestore.exists();
+    }
+
     /**
      * Checks if iptables was successfully initialized by the init-script.
      * @return true if it finds the witness chain.
      */
     public boolean isInitialized() {
         String rule = "-C ow_OUTPUT_LOCK -j DROP";
-        return genericRule(rule);
+        return ruleExists(Constants.IPTABLES, rule);
     }
 
     public boolean haveBooted() {
         String rule = "-C OUTPUT -j ow_OUTPUT";
-        return genericRule(rule);
+        return ruleExists(Constants.IPTABLES, rule);
     }
 
     /**
      * update rules for LAN access.
+     * @return false if a rule couldn't be applied; always true while batching, failures being
+     * reported by the outer commit
      */
-    public void LANPolicy() {
+    public boolean LANPolicy() {
         String subnet = NetworkHelper.getSubnet(this.context);
 
         // Get subnet from SharedPreferences
         String old_subnet = Preferences.getCurrentSubnet(context);
 
+        beginBatch();
         if (old_subnet != null && !old_subnet.equals(subnet)) {
             // Remove rules if we got another subnet in sharedPref
             LanNoNat(old_subnet, false);
@@ -253,13 +1148,16 @@ public class Iptables {
             // Or save new subnet
             Preferences.setCurrentSubnet(context, subnet);
         }
+        return commitBatch().isEmpty();
     }
 
     /**
      * Apply or remove rules for ADB access
      * @param allow boolean, true if we want to add rules, false otherwise.
+     * @return false if a rule couldn't be applied; always true while batching, failures being
+     * reported by the outer commit
      */
-    public void enableADB(final boolean allow) {
+    public boolean enableADB(final boolean allow) {
         char action = (allow ? 'I' : 'D');
 
         // TODO: lock in order to authorize only LAN
@@ -269,19 +1167,23 @@ public class Iptables {
                 "-t nat -%c ow_OUTPUT -p tcp --sport 5555 -j RETURN",
         };
 
+        beginBatch();
         for (String rule : rules) {
             if (!genericRule(String.format(rule, action))) {
                 Log.e("enableADB", "Unable to add rule");
                 Log.e("enableADB", String.format(rule, action));
             }
         }
+        return commitBatch().isEmpty();
     }
 
     /**
      * Apply or remove rules for SSH access
      * @param allow boolean, true if we want to add rules, false otherwise.
+     * @return false if a rule couldn't be applied; always true while batching, failures being
+     * reported by the outer commit
      */
-    public void enableSSH(final boolean allow) {
+    public boolean enableSSH(final boolean allow) {
         char action = (allow ? 'I' : 'D');
 
         // TODO: lock in order to authorize only LAN
@@ -293,12 +1195,14 @@ public class Iptables {
                 "-t nat -%c ow_OUTPUT -p tcp --sport 22 -j RETURN",
         };
 
+        beginBatch();
         for (String rule : rules) {
             if (!genericRule(String.format(rule, action))) {
                 Log.e("enableSSH", "Unable to add rule");
                 Log.e("enableSSH", String.format(rule, action));
             }
         }
+        return commitBatch().isEmpty();
     }
 
     /**
@@ -306,8 +1210,8 @@ public class Iptables {
      */
 
     public void initIPv6(){
-        if (!ip6tablesExists()) return;
-        if (genericRuleV6("-C INPUT -j REJECT")) return;
+        if (!getCapabilities().has(IptablesCapabilities.IP6TABLES)) return;
+        if (ruleExists(Constants.IP6TABLES, "-C INPUT -j REJECT")) return;
 
         String[] rules = {
                 // flush all OUTPUT rules
@@ -318,11 +1222,11 @@ public class Iptables {
                 "-I OUTPUT -j REJECT",
                 "-I FORWARD -j REJECT"
         };
-        for (String rule : rules) {
-            if (!genericRuleV6(rule)) {
-                Log.e(Iptables.class.getName(), "Unable to initialize IPv6");
-                Log.e(Iptables.class.getName(), rule);
-            }
+        ArrayList<String> failed = new ArrayList<>();
+        applyEach(Constants.IP6TABLES, Arrays.asList(rules), failed);
+        for (String rule : failed) {
+            Log.e(Iptables.class.getName(), "Unable to initialize IPv6");
+            Log.e(Iptables.class.getName(), rule);
         }
     }
 
@@ -336,6 +1240,11 @@ public class Iptables {
         rules.add("-P OUTPUT DROP");
         rules.add("-N ow_OUTPUT");
         rules.add("-A OUTPUT -j ow_OUTPUT");
+        // fast path: packets of accepted connections don't go through per-app rules
+        rules.add(String.format(Locale.US,
+                "-A ow_OUTPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT%s",
+                (getSupportComment() ? " -m comment --comment \"Allow related,established outputs\"" : "")
+        ));
         if (orbot_uid > 0){
             // let orbot output
             rules.add(String.format(Locale.US,
@@ -371,10 +1280,21 @@ public class Iptables {
             ));
         }
 
+        if (isMarkMode()) {
+            rules.addAll(sharedMarkRules());
+        } else {
+            rules.addAll(policyChains());
+        }
+
         // apply rules in the chain
         rules.add("-t nat -A OUTPUT -j ow_OUTPUT");
         // create a chain for LAN
         rules.add("-N ow_LAN");
+        rules.add("-A ow_LAN -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT");
+        if (isMarkMode()) {
+            rules.add(String.format(Locale.US,
+                    "-A ow_LAN -m conntrack --ctstate NEW -m mark --mark %s -j ACCEPT", mark(MARK_LAN)));
+        }
         // at the end, deactivate boot locking
         rules.add("-D OUTPUT -j ow_OUTPUT_LOCK");
 
@@ -386,6 +1306,167 @@ public class Iptables {
         }
     }
 
+    /**
+     * Rules shared by all applications in mark mode: mangle chain tagging packets, and nat/filter
+     * rules acting on tags, in place of the per-app rules of natApp(), bypass() and localHost().
+     * @return rules to append
+     */
+    private List<String> sharedMarkRules() {
+        long trans_port = Long.valueOf(Preferences.getTransPort(context));
+        long dns_port = Long.valueOf(Preferences.getDNSPort(context));
+        ArrayList<String> rules = new ArrayList<>();
+
+        rules.add("-t mangle -N ow_OUTPUT");
+        // only new connections need a tag: nat sees first packets only, filter accepts the others early
+        rules.add("-t mangle -A ow_OUTPUT -m conntrack --ctstate RELATED,ESTABLISHED -j RETURN");
+        rules.add("-t mangle -A OUTPUT -j ow_OUTPUT");
+
+        rules.add(String.format(Locale.US,
+                "-t nat -A ow_OUTPUT -p tcp -m tcp --tcp-flags FIN,SYN,RST,ACK SYN -m mark --mark %s -j REDIRECT --to-ports %d",
+                mark(MARK_TOR), trans_port));
+        rules.add(String.format(Locale.US,
+                "-t nat -A ow_OUTPUT -p udp --dport 53 -m mark --mark %s -j REDIRECT --to-ports %d",
+                mark(MARK_TOR), dns_port));
+        rules.add(String.format(Locale.US,
+                "-A ow_OUTPUT -d 127.0.0.1 -m conntrack --ctstate NEW -m mark --mark %s -p tcp --dport %d -j ACCEPT",
+                mark(MARK_TOR), trans_port));
+        rules.add(String.format(Locale.US,
+                "-A ow_OUTPUT -d 127.0.0.1 -m conntrack --ctstate NEW -m mark --mark %s -p udp --dport %d -j ACCEPT",
+                mark(MARK_TOR), dns_port));
+        rules.add(String.format(Locale.US,
+                "-A ow_OUTPUT -m conntrack --ctstate NEW -m mark --mark %s -j ACCEPT", mark(MARK_BYPASS)));
+        rules.add(String.format(Locale.US,
+                "-A ow_OUTPUT -o lo -m conntrack --ctstate NEW -m mark --mark %s -j ACCEPT", mark(MARK_LOCALHOST)));
+        return rules;
+    }
+
+    /**
+     * Per-policy chains holding app rules, and their dispatch from ow_OUTPUT.
+     * @return rules to append
+     */
+    private List<String> policyChains() {
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("-t nat -N " + CHAIN_TOR);
+        rules.add("-t nat -A ow_OUTPUT -j " + CHAIN_TOR);
+        rules.add("-N " + CHAIN_TOR);
+        rules.add("-N " + CHAIN_BYPASS);
+        rules.add("-N " + CHAIN_LOCAL);
+        rules.add("-A ow_OUTPUT -j " + CHAIN_TOR);
+        rules.add("-A ow_OUTPUT -j " + CHAIN_BYPASS);
+        rules.add("-A ow_OUTPUT -o lo -j " + CHAIN_LOCAL);
+        return rules;
+    }
+
+    /**
+     * Apply new proxy ports to installed rules: rules referencing ports (REDIRECT and ACCEPT of
+     * Orbot's TransPort and DNSPort, for the system and for torified apps) are replaced in place,
+     * in a single batch. Nothing else is touched.
+     * @return true if every rule could be updated
+     */
+    public boolean updatePorts() {
+        IptablesSnapshot current = getSnapshot();
+        if (current == null) {
+            Log.e("updatePorts", "Unable to get current rules");
+            return false;
+        }
+
+        // table chain -> spec without ports -> position
+        Map<String, Map<String, Integer>> installed = new HashMap<>();
+        int updated = 0;
+        beginBatch();
+        for (String rule : portRules()) {
+            if (current.contains(rule)) continue;
+
+            String table = IptablesRestore.getTable(rule);
+            String stripped = IptablesRestore.stripTable(rule);
+            List<String> tokens = IptablesSnapshot.tokenize(stripped);
+            String chain = tokens.get(1);
+
+            Map<String, Integer> positions = installed.get(table + " " + chain);
+            if (positions == null) {
+                positions = new HashMap<>();
+                List<String> listed = current.getRules(table, chain);
+                for (int i = 0; i < listed.size(); i++) {
+                    String key = withoutPorts(IptablesSnapshot.canonical(IptablesSnapshot.tokenize(listed.get(i))));
+                    if (!positions.containsKey(key)) positions.put(key, i + 1);
+                }
+                installed.put(table + " " + chain, positions);
+            }
+
+            Integer position = positions.get(withoutPorts(IptablesSnapshot.canonical(tokens.subList(2, tokens.size()))));
+            if (position == null) {
+                // not installed at all: not our business here
+                continue;
+            }
+            String spec = stripped.substring(stripped.indexOf(chain, 2) + chain.length()).trim();
+            genericRule(String.format(Locale.US, "-t %s -R %s %d %s", table, chain, position, spec));
+            updated++;
+        }
+        List<String> failed = commitBatch();
+        Log.d("updatePorts", String.format(Locale.US, "%d rule(s) updated, %d failure(s)", updated, failed.size()));
+        for (String rule : failed) {
+            Log.e("updatePorts", "Unable to apply rule: " + rule);
+        }
+        return failed.isEmpty();
+    }
+
+    /**
+     * Rules referencing proxy ports, as they would be generated now
+     */
+    private List<String> portRules() {
+        ArrayList<AppRule> torified = new ArrayList<>();
+        if (!isMarkMode()) {
+            for (AppRule rule : new NatRules(context).getAllRules()) {
+                if ((rule.getPolicy() & AppRule.PROXY_MASK) == AppRule.PROXY_TOR) {
+                    torified.add(rule);
+                }
+            }
+        }
+
+        RuleSet generated = new RuleSet();
+        this.sink = generated;
+        try {
+            initOutputs();
+        } finally {
+            this.sink = null;
+        }
+        generated.addAll(compileAppRules(torified));
+
+        ArrayList<String> rules = new ArrayList<>();
+        for (String rule : generated.getRules()) {
+            String verb = IptablesSnapshot.tokenize(IptablesRestore.stripTable(rule)).get(0);
+            if ((verb.equals("-A") || verb.equals("-I")) && PORT_OPTION.matcher(rule).find()) {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    private static String withoutPorts(final String spec) {
+        return PORT_OPTION.matcher(spec).replaceAll("--$1 *");
+    }
+
+    /**
+     * Remove every app rule of a policy at once
+     * @param chain CHAIN_TOR, CHAIN_BYPASS or CHAIN_LOCAL
+     * @return rules that couldn't be applied
+     */
+    public List<String> flushPolicy(final String chain) {
+        beginBatch();
+        genericRule("-F " + chain);
+        if (chain.equals(CHAIN_TOR)) {
+            genericRule("-t nat -F " + chain);
+        }
+        return commitBatch();
+    }
+
+    /**
+     * Match on a single mark bit
+     */
+    private static String mark(final long bit) {
+        return String.format(Locale.US, "0x%x/0x%x", bit, bit);
+    }
+
     /**
      * Initialize INPUT chain
      */
@@ -396,6 +1477,11 @@ public class Iptables {
         rules.add("-P INPUT DROP");
         rules.add("-N ow_INPUT");
         rules.add("-A INPUT -j ow_INPUT");
+        // fast path, first in chain
+        rules.add(String.format(Locale.US,
+                "-A ow_INPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT%s",
+                (getSupportComment() ? " -m comment --comment \"Allow related,established inputs\"" : "")
+        ));
         if (orbot_uid > 0){
             // accept orbot inputs
             rules.add(String.format(Locale.US,
@@ -403,10 +1489,10 @@ public class Iptables {
                     orbot_uid, (getSupportComment() ? " -m comment --comment \"Allow Orbot inputs\"" : "")
             ));
         }
-        rules.add(String.format(Locale.US,
-                "-A ow_INPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT%s",
-                (getSupportComment() ? " -m comment --comment \"Allow related,established inputs\"" : "")
-        ));
+        if (isMarkMode()) {
+            rules.add(String.format(Locale.US,
+                    "-A ow_INPUT -i lo -m conntrack --ctstate NEW -m mark --mark %s -j ACCEPT", mark(MARK_LOCALHOST)));
+        }
         // at the end, deactivate boot locking
         rules.add("-D INPUT -j ow_INPUT_LOCK");
 
@@ -465,35 +1551,27 @@ public class Iptables {
     private static void doInstallScripts(String src_file, String dst_file) {
         Shell shell;
         try {
-            shell = Shell.startRootShell();
+            shell = SharedShell.acquire();
         } catch (IOException e) {
             Log.e("Shell", "Unable to get shell");
             return;
         }
 
-        if (shell != null) {
-            String CMD = String.format("cp %s %s", src_file, dst_file);
+        String CMD = String.format("cp %s %s", src_file, dst_file);
 
-            SimpleCommand command1 = new SimpleCommand("mount -o remount,rw /system");
-            SimpleCommand command2 = new SimpleCommand(CMD);
-            CMD = String.format("chmod 0755 %s", dst_file);
-            SimpleCommand command3 = new SimpleCommand(CMD);
-            SimpleCommand command4 = new SimpleCommand("mount -o remount,ro /system");
-            try {
-                shell.add(command1).waitForFinish();
-                shell.add(command2).waitForFinish();
-                shell.add(command3).waitForFinish();
-                shell.add(command4).waitForFinish();
-            } catch (IOException e) {
-                Log.e("Shell", "Unable to run simple command");
-            } catch (TimeoutException e) {
-                Log.e("Shell", "Error while closing the Shell");
-            } finally {
-                try {
-                    shell.close();
-                } catch (IOException e) {
-                }
-            }
+        SimpleCommand command1 = new SimpleCommand("mount -o remount,rw /system");
+        SimpleCommand command2 = new SimpleCommand(CMD);
+        CMD = String.format("chmod 0755 %s", dst_file);
+        SimpleCommand command3 = new SimpleCommand(CMD);
+        SimpleCommand command4 = new SimpleCommand("mount -o remount,ro /system");
+        try {
+            shell.addAll(Arrays.<Command>asList(command1, command2, command3, command4)).waitForFinish();
+        } catch (IOException e) {
+            Log.e("Shell", "Unable to run simple command");
+        } catch (TimeoutException e) {
+            Log.e("Shell", "Error while closing the Shell");
+        } finally {
+            SharedShell.release(shell);
         }
     }
 
@@ -503,30 +1581,23 @@ public class Iptables {
     public static void removeIniScript(Context context) {
         Shell shell;
         try {
-            shell = Shell.startRootShell();
+            shell = SharedShell.acquire();
         } catch (IOException e) {
             Log.e("Shell", "Unable to get shell");
             return;
         }
-        if (shell != null) {
-            SimpleCommand command1 = new SimpleCommand("mount -o remount,rw /system");
-            SimpleCommand command2 = new SimpleCommand("rm -f " + DST_FILE);
-            SimpleCommand command3 = new SimpleCommand("mount -o remount,ro /system");
-            try {
-                shell.add(command1).waitForFinish();
-                shell.add(command2).waitForFinish();
-                shell.add(command3).waitForFinish();
-            } catch (IOException e) {
-                Log.e("Shell", "Unable to run simple command");
-            } catch (TimeoutException e) {
-                Log.e("Shell", "Error while closing the Shell");
-            } finally {
-                Preferences.setEnforceInitScript(context, false);
-                try {
-                    shell.close();
-                } catch (IOException e) {
-                }
-            }
+        SimpleCommand command1 = new SimpleCommand("mount -o remount,rw /system");
+        SimpleCommand command2 = new SimpleCommand("rm -f " + DST_FILE);
+        SimpleCommand command3 = new SimpleCommand("mount -o remount,ro /system");
+        try {
+            shell.addAll(Arrays.<Command>asList(command1, command2, command3)).waitForFinish();
+        } catch (IOException e) {
+            Log.e("Shell", "Unable to run simple command");
+        } catch (TimeoutException e) {
+            Log.e("Shell", "Error while closing the Shell");
+        } finally {
+            Preferences.setEnforceInitScript(context, false);
+            SharedShell.release(shell);
         }
     }
 
@@ -534,8 +1605,10 @@ public class Iptables {
      * Apply or remove rules for SIP bypass
      * @param status Boolean, true if we want to add rules, false otherwise
      * @param uid Long, application UID
+     * @return false if a rule couldn't be applied; always true while batching, failures being
+     * reported by the outer commit
      */
-    public void manageSip(boolean status, Long uid) {
+    public boolean manageSip(boolean status, Long uid) {
         String[] rules = {
                 "-%c ow_INPUT -m owner --uid-owner %d -m conntrack --ctstate RELATED,ESTABLISHED -p udp -j ACCEPT",
                 "-%c ow_OUTPUT -m owner --uid-owner %d -p udp -j ACCEPT",
@@ -543,17 +1616,21 @@ public class Iptables {
         };
         char action = (status ? 'A' : 'D');
 
+        beginBatch();
         for (String rule : rules) {
             genericRule(String.format(rule, action, uid));
         }
+        return commitBatch().isEmpty();
     }
 
     /**
      * Apply or remove rules enabling a browser to perform a network login in a captive network
      * @param status boolean, true if we want to enable this probe.
      * @param uid long, application UID
+     * @return false if a rule couldn't be applied; always true while batching, failures being
+     * reported by the outer commit
      */
-    public void manageCaptiveBrowser(boolean status, Long uid) {
+    public boolean manageCaptiveBrowser(boolean status, Long uid) {
         String[] rules = {
                 "-%c ow_INPUT -m owner --uid-owner %d -m conntrack --ctstate RELATED,ESTABLISHED -p udp --sport 53 -j ACCEPT",
                 "-%c ow_INPUT -m conntrack --ctstate RELATED,ESTABLISHED -m owner --uid-owner %d -j ACCEPT",
@@ -564,15 +1641,23 @@ public class Iptables {
         };
         char action = (status ? 'I' : 'D');
 
+        beginBatch();
         for (String rule : rules) {
             Log.d("ManageCaptiveBrowser", String.format(rule, action, uid));
             genericRule(String.format(rule, action, uid));
         }
+        return commitBatch().isEmpty();
     }
 
-    public void tetherUpdate(Context context, Set<String> before, Set<String> after){
+    /**
+     * Update tethering rules, from the previously tethered interfaces to the current ones
+     * @return false if a rule couldn't be applied; always true while batching, failures being
+     * reported by the outer commit
+     */
+    public boolean tetherUpdate(Context context, Set<String> before, Set<String> after){
         Preferences.setTetherInterfaces(context, after);
 
+        beginBatch();
         if (before != null) {
             for (String item: before){
                 if (!after.contains(item))
@@ -584,6 +1669,7 @@ public class Iptables {
             if (before == null || !before.contains(item))
                 tether(true, item);
         }
+        return commitBatch().isEmpty();
     }
 
     public void tether(boolean status, String intf){
@@ -619,8 +1705,8 @@ public class Iptables {
         // relay dns query to isp
         rules.add(
                 String.format(
-                        "-%c ow_OUTPUT -m owner --gid-owner %s -p udp --dport 53 -j ACCEPT%s",
-                        action, "nobody", (getSupportComment() ? " -m comment --comment \"Allow DNS/ISP tethering\"" : "")
+                        "-%c ow_OUTPUT -m owner --gid-owner %d -p udp --dport 53 -j ACCEPT%s",
+                        action, GID_NOBODY, (getSupportComment() ? " -m comment --comment \"Allow DNS/ISP tethering\"" : "")
                 ));
 
         for (String rule : rules) {
@@ -671,28 +1757,32 @@ public class Iptables {
      * @param appName
      */
     public void natApp(Context context, final long appUID, final char action, final String appName) {
+        natApp(context, String.valueOf(appUID), action, appName);
+    }
+
+    private void natApp(Context context, final String owner, final char action, final String appName) {
         if (!isOrbotInstalled()) return;
         long trans_port = Long.valueOf(Preferences.getTransPort(context));
         long dns_port = Long.valueOf(Preferences.getDNSPort(context));
         String[] RULES = {
                 String.format(Locale.US,
-                        "-t nat -%c ow_OUTPUT -p tcp -m tcp --tcp-flags FIN,SYN,RST,ACK SYN -m owner --uid-owner %d -j REDIRECT --to-ports %d%s",
-                        action, appUID, trans_port,
+                        "-t nat -%c %s -p tcp -m tcp --tcp-flags FIN,SYN,RST,ACK SYN -m owner --uid-owner %s -j REDIRECT --to-ports %d%s",
+                        action, CHAIN_TOR, owner, trans_port,
                         (getSupportComment() ? String.format(" -m comment --comment \"Force %s through TransPort\"", appName) : "")
                 ),
                 String.format(Locale.US,
-                        "-t nat -%c ow_OUTPUT -p udp --dport 53 -m owner --uid-owner %d -j REDIRECT --to-ports %d%s",
-                        action, appUID, dns_port,
+                        "-t nat -%c %s -p udp --dport 53 -m owner --uid-owner %s -j REDIRECT --to-ports %d%s",
+                        action, CHAIN_TOR, owner, dns_port,
                         (getSupportComment() ? String.format(" -m comment --comment \"Force %s through DNSProxy\"", appName) : "")
                 ),
                 String.format(Locale.US,
-                        "-%c ow_OUTPUT -d 127.0.0.1 -m conntrack --ctstate NEW,ESTABLISHED -m owner --uid-owner %d -m tcp -p tcp --dport %d -j ACCEPT%s",
-                        action, appUID, trans_port,
+                        "-%c %s -d 127.0.0.1 -m conntrack --ctstate NEW -m owner --uid-owner %s -m tcp -p tcp --dport %d -j ACCEPT%s",
+                        action, CHAIN_TOR, owner, trans_port,
                         (getSupportComment() ? String.format(" -m comment --comment \"Allow %s through TransPort\"", appName) : "")
                 ),
                 String.format(Locale.US,
-                        "-%c ow_OUTPUT -d 127.0.0.1 -m conntrack --ctstate NEW,ESTABLISHED -m owner --uid-owner %d -p udp --dport %d -j ACCEPT%s",
-                        action, appUID, dns_port,
+                        "-%c %s -d 127.0.0.1 -m conntrack --ctstate NEW -m owner --uid-owner %s -p udp --dport %d -j ACCEPT%s",
+                        action, CHAIN_TOR, owner, dns_port,
                         (getSupportComment() ? String.format(" -m comment --comment \"Allow %s through DNSProxy\"", appName) : "")
                 ),
         };
@@ -725,20 +1815,207 @@ public class Iptables {
         }
     }
 
+    /**
+     * Compile desired app rules, by running the usual rule generators into a RuleSet.
+     * UIDs sharing a policy are grouped, and contiguous ones merged in "--uid-owner a-b" ranges
+     * if iptables supports them: one rule per range instead of one per application.
+     * @param rules application rules
+     * @return rules to install
+     */
+    public RuleSet compileAppRules(final Collection<AppRule> rules) {
+        boolean merge = getCapabilities().has(IptablesCapabilities.OWNER_RANGE);
+        boolean markMode = isMarkMode();
+        // policy -> UIDs; policy is a mark in mark mode, a rule generator otherwise
+        Map<Long, Set<Long>> groups = new TreeMap<>();
+        Map<Long, String> names = new HashMap<>();
+
+        for (AppRule rule : rules) {
+            long uid = rule.getAppUID();
+            names.put(uid, rule.getPkgName());
+            int stored = rule.getPolicy();
+            long policy = 0;
+            switch (stored & AppRule.PROXY_MASK) {
+                case AppRule.PROXY_TOR:
+                    policy |= MARK_TOR;
+                    break;
+                case AppRule.PROXY_BYPASS:
+                    policy |= MARK_BYPASS;
+                    break;
+            }
+            if ((stored & AppRule.FLAG_LOCALHOST) != 0) policy |= MARK_LOCALHOST;
+            if ((stored & AppRule.FLAG_LOCALNETWORK) != 0) policy |= MARK_LAN;
+
+            if (markMode) {
+                if (policy != 0) addToGroup(groups, policy, uid);
+            } else {
+                for (long bit : new long[]{MARK_TOR, MARK_BYPASS, MARK_LOCALHOST, MARK_LAN}) {
+                    if ((policy & bit) != 0) addToGroup(groups, bit, uid);
+                }
+            }
+        }
+
+        RuleSet compiled = new RuleSet();
+        this.sink = compiled;
+        try {
+            for (Map.Entry<Long, Set<Long>> group : groups.entrySet()) {
+                long policy = group.getKey();
+                for (String owner : UidRanges.compress(group.getValue(), merge)) {
+                    String name = (UidRanges.isRange(owner) ? "UIDs " + owner : names.get(Long.valueOf(owner)));
+                    if (markMode) {
+                        markApp(owner, name, policy, true);
+                    } else if (policy == MARK_TOR) {
+                        natApp(context, owner, 'A', name);
+                    } else if (policy == MARK_BYPASS) {
+                        bypass(owner, name, true);
+                    } else if (policy == MARK_LOCALHOST) {
+                        localHost(owner, name, true);
+                    } else if (policy == MARK_LAN) {
+                        localNetwork(owner, name, true);
+                    }
+                }
+            }
+        } finally {
+            this.sink = null;
+        }
+        return compiled;
+    }
+
+    private static void addToGroup(final Map<Long, Set<Long>> groups, final long policy, final long uid) {
+        Set<Long> uids = groups.get(policy);
+        if (uids == null) {
+            uids = new TreeSet<>();
+            groups.put(policy, uids);
+        }
+        uids.add(uid);
+    }
+
+    /**
+     * Bring app rules to the state stored in NatRules, only applying what differs from the
+     * current ruleset: changing one application only touches the ranges around it.
+     * @param appUID application whose state is given, as NatRules may not be up to date yet,
+     *               or null
+     * @param rule wanted state for appUID, or null if it must not have any rule
+     * @return true if every change could be applied
+     */
+    public boolean reconcileApps(final Long appUID, final AppRule rule) {
+        Map<Long, AppRule> overrides = new HashMap<>();
+        if (appUID != null) {
+            overrides.put(appUID, rule);
+        }
+        return reconcileApps(overrides);
+    }
+
+    /**
+     * Same as reconcileApps(appUID, rule), for several applications at once
+     * @param overrides application UID -> wanted state, or null if it must not have any rule
+     * @return true if every change could be applied; while batching, only false if changes
+     * couldn't be computed, failures being reported when the batch is committed
+     */
+    public boolean reconcileApps(final Map<Long, AppRule> overrides) {
+        ArrayList<AppRule> rules = new ArrayList<>();
+        for (AppRule stored : new NatRules(context).getAllRules()) {
+            if (!overrides.containsKey(stored.getAppUID())) {
+                rules.add(stored);
+            }
+        }
+        for (AppRule rule : overrides.values()) {
+            if (rule != null && !rule.isEmpty()) {
+                rules.add(rule);
+            }
+        }
+        RuleSet wanted = compileAppRules(rules);
+
+        IptablesSnapshot current = getSnapshot();
+        if (current == null) {
+            Log.e("reconcileApps", "Unable to get current rules");
+            return false;
+        }
+
+        // whatever app rule is installed and not wanted anymore must go away
+        RuleSet managed = installedAppRules(current);
+        managed.addAll(wanted);
+
+        List<String> changes = wanted.diff(managed, current);
+        Log.d("reconcileApps", String.format(Locale.US, "%d rule(s) wanted, %d change(s)", wanted.size(), changes.size()));
+        if (changes.isEmpty()) {
+            return true;
+        }
+
+        beginBatch();
+        for (String change : changes) {
+            genericRule(change);
+        }
+        return commitBatch().isEmpty();
+    }
+
+    /**
+     * App rules found in the kernel ruleset: per-policy chains hold nothing else, ow_LAN, ow_INPUT
+     * and mangle ow_OUTPUT are filtered on the shape of the rules we generate.
+     */
+    private RuleSet installedAppRules(final IptablesSnapshot current) {
+        String[][] chains = {
+                {"filter", CHAIN_TOR, null},
+                {"filter", CHAIN_BYPASS, null},
+                {"filter", CHAIN_LOCAL, null},
+                {"nat", CHAIN_TOR, null},
+                {"filter", "ow_LAN", "--uid-owner"},
+                {"filter", "ow_INPUT", "-i lo"},
+                {"mangle", "ow_OUTPUT", "-j MARK"},
+        };
+        RuleSet installed = new RuleSet();
+        for (String[] chain : chains) {
+            for (String rule : current.getRules(chain[0], chain[1])) {
+                if (chain[2] != null && !(rule.contains(chain[2]) && rule.contains("--uid-owner"))) continue;
+                installed.add(String.format("-t %s -A %s %s", chain[0], chain[1], rule));
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Apply a rule, or queue it if a batch is running.
+     * @param rule iptables arguments
+     * @return false if the rule failed; always true while batching, failures being reported by commitBatch()
+     */
     public boolean genericRule(final String rule) {
-        return runCommand(String.format((getSupportWait())?"%s -w %s":"%s %s", Constants.IPTABLES, rule));
+        if (this.sink != null) {
+            this.sink.add(rule);
+            return true;
+        }
+        if (this.batch != null) {
+            this.batch.add(rule);
+            return true;
+        }
+        return runRule(rule);
+    }
+
+    /**
+     * Apply a rule right now, even if a batch is running. Needed for checks (-C).
+     * @param rule iptables arguments
+     * @return true if success
+     */
+    private boolean runRule(final String rule) {
+        return runCommand(iptablesCommand(Constants.IPTABLES, rule));
     }
 
     public boolean genericRuleV6(final String rule) {
-        return runCommand(String.format((getSupportWait())?"%s -w %s":"%s %s", Constants.IP6TABLES, rule));
+        return runCommand(iptablesCommand(Constants.IP6TABLES, rule));
+    }
+
+    private String iptablesCommand(final String binary, final String rule) {
+        return String.format((getSupportWait())?"%s -w %s":"%s %s", binary, rule);
     }
 
     public void bypass(final long appUID, final String appName, final boolean allow) {
+        bypass(String.valueOf(appUID), appName, allow);
+    }
+
+    private void bypass(final String owner, final String appName, final boolean allow) {
         char action = (allow ? 'A' : 'D');
         String[] rules = {
                 String.format(Locale.US,
-                        "-%c ow_OUTPUT -m conntrack --ctstate NEW,ESTABLISHED,RELATED -m owner --uid-owner %d -j ACCEPT%s",
-                        action, appUID,
+                        "-%c %s -m conntrack --ctstate NEW -m owner --uid-owner %s -j ACCEPT%s",
+                        action, CHAIN_BYPASS, owner,
                         (getSupportComment() ? String.format(" -m comment --comment \"Allow %s to bypass Proxies\"", appName) : "")
                 ),
         };
@@ -754,17 +2031,21 @@ public class Iptables {
     }
 
     public void localHost(final long appUID, final String appName, final boolean allow) {
+        localHost(String.valueOf(appUID), appName, allow);
+    }
+
+    private void localHost(final String owner, final String appName, final boolean allow) {
         char action = (allow ? 'A' : 'D');
 
         String[] rules = {
                 String.format(Locale.US,
-                        "-%c ow_OUTPUT -o lo -m owner --uid-owner %d -j ACCEPT%s",
-                        action, appUID,
+                        "-%c %s -o lo -m conntrack --ctstate NEW -m owner --uid-owner %s -j ACCEPT%s",
+                        action, CHAIN_LOCAL, owner,
                         (getSupportComment() ? String.format(" -m comment --comment \"Allow %s to connect on localhost\"", appName) : "")
                 ),
                 String.format(Locale.US,
-                        "-%c ow_INPUT -i lo -m owner --uid-owner %d -j ACCEPT%s",
-                        action, appUID,
+                        "-%c ow_INPUT -i lo -m conntrack --ctstate NEW -m owner --uid-owner %s -j ACCEPT%s",
+                        action, owner,
                         (getSupportComment() ? String.format(" -m comment --comment \"Allow %s to connect on localhost\"", appName) : "")
                 ),
         };
@@ -779,13 +2060,40 @@ public class Iptables {
         }
     }
 
+    /**
+     * Tag packets of an application, in mark mode
+     * @param appUID application UID
+     * @param appName application name, only used in comments
+     * @param mark MARK_* bits
+     * @param allow true to add the rule, false to remove it
+     */
+    public void markApp(final long appUID, final String appName, final long mark, final boolean allow) {
+        markApp(String.valueOf(appUID), appName, mark, allow);
+    }
+
+    private void markApp(final String owner, final String appName, final long mark, final boolean allow) {
+        char action = (allow ? 'A' : 'D');
+        String rule = String.format(Locale.US,
+                "-t mangle -%c ow_OUTPUT -m owner --uid-owner %s -j MARK --set-xmark 0x%x/0x%x%s",
+                action, owner, mark, MARK_MASK,
+                (getSupportComment() ? String.format(" -m comment --comment \"Tag %s\"", appName) : "")
+        );
+        if (!genericRule(rule)) {
+            Log.e("markApp", "Unable to add rule: " + rule);
+        }
+    }
+
     public void localNetwork(final long appUID, final String appName, final boolean allow) {
-        char action = (allow ? 'I' : 'D');
+        localNetwork(String.valueOf(appUID), appName, allow);
+    }
+
+    private void localNetwork(final String owner, final String appName, final boolean allow) {
+        char action = (allow ? 'A' : 'D');
 
         String[] rules = {
                 String.format(Locale.US,
-                        "-%c ow_LAN -m owner --uid-owner %d -j ACCEPT%s",
-                        action, appUID,
+                        "-%c ow_LAN -m conntrack --ctstate NEW -m owner --uid-owner %s -j ACCEPT%s",
+                        action, owner,
                         (getSupportComment() ? String.format(" -m comment --comment \"Local network %s\"", appName) : "")
                 )
         };
@@ -0,0 +1,159 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.sufficientlysecure.rootcommands.SharedShell;
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.StatusCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * What the device iptables supports.
+ * Probes are run once, all together, and their result is persisted. It is keyed by the build
+ * fingerprint and the iptables binary size and mtime, so that an OTA (or a new iptables binary)
+ * triggers a new detection, as does a change of the probes themselves. Until then, getting capabilities doesn't run any root command.
+ */
+public final class IptablesCapabilities {
+    public final static int COMMENT = 1;
+    public final static int WAIT = 1 << 1;
+    public final static int RESTORE = 1 << 2;
+    public final static int MULTIPORT = 1 << 3;
+    public final static int OWNER_RANGE = 1 << 4;
+    public final static int MARK = 1 << 5;
+    public final static int IP6TABLES = 1 << 6;
+
+    private final static String PREFERENCES = "org.ethack.orwall_capabilities";
+    private final static String PREF_KEY = "key";
+    private final static String PREF_FLAGS = "flags";
+
+    // probes needing root, flag -> command exiting with 0 if supported
+    private final static int[] PROBED = {COMMENT, WAIT, MULTIPORT, OWNER_RANGE, MARK};
+    private final static String[] PROBES = {
+            "grep -q comment /proc/net/ip_tables_matches",
+            String.format("%s --help | grep -q -e \"--wait\"", Constants.IPTABLES),
+            "grep -q multiport /proc/net/ip_tables_matches",
+            String.format("grep -q owner /proc/net/ip_tables_matches && %s -m owner --help | grep -q -e \"userid\\[-userid\\]\"", Constants.IPTABLES),
+            // mark mode sets marks with the MARK target and matches them with the mark match
+            "grep -qx MARK /proc/net/ip_tables_targets && grep -qx mark /proc/net/ip_tables_matches",
+    };
+    // part of the key: results of older probes are detected again
+    private final static int PROBES_VERSION = 2;
+
+    private static IptablesCapabilities instance = null;
+
+    private final String key;
+    private final int flags;
+
+    private IptablesCapabilities(final String key, final int flags) {
+        this.key = key;
+        this.flags = flags;
+    }
+
+    /**
+     * Get capabilities of the current system, probing them only if nothing valid is known.
+     *
+     * @param context
+     * @return capabilities
+     */
+    public static synchronized IptablesCapabilities get(final Context context) {
+        String key = currentKey();
+        if (instance != null && instance.key.equals(key)) {
+            return instance;
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        if (key.equals(prefs.getString(PREF_KEY, null))) {
+            instance = new IptablesCapabilities(key, prefs.getInt(PREF_FLAGS, 0));
+            return instance;
+        }
+
+        Log.d("IptablesCapabilities", "Probing iptables capabilities for " + key);
+        Integer flags = probe();
+        if (flags == null) {
+            // no shell: don't persist anything, we'll try again next time
+            return new IptablesCapabilities(key, fileFlags());
+        }
+        prefs.edit().putString(PREF_KEY, key).putInt(PREF_FLAGS, flags).apply();
+        instance = new IptablesCapabilities(key, flags);
+        return instance;
+    }
+
+    /**
+     * Forget persisted capabilities, next get() will probe them again.
+     *
+     * @param context
+     */
+    public static synchronized void invalidate(final Context context) {
+        instance = null;
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+                .remove(PREF_KEY).remove(PREF_FLAGS).apply();
+    }
+
+    public boolean has(final int capability) {
+        return (this.flags & capability) == capability;
+    }
+
+    private static String currentKey() {
+        File iptables = new File(Constants.IPTABLES);
+        return String.format("%d|%s|%d|%d", PROBES_VERSION, Build.FINGERPRINT, iptables.length(), iptables.lastModified());
+    }
+
+    /**
+     * Capabilities given by the mere presence of a binary
+     */
+    private static int fileFlags() {
+        int flags = 0;
+        if (Iptables.iptablesRestoreExists()) flags |= RESTORE;
+        if (Iptables.ip6tablesExists()) flags |= IP6TABLES;
+        return flags;
+    }
+
+    /**
+     * Run every probe at once in the shared shell.
+     *
+     * @return detected flags, or null if probes couldn't be run
+     */
+    private static Integer probe() {
+        Shell shell;
+        try {
+            shell = SharedShell.acquire();
+        } catch (IOException e) {
+            Log.e("Shell", "NO shell !");
+            return null;
+        }
+
+        ArrayList<Command> group = new ArrayList<>();
+        for (String probe : PROBES) {
+            group.add(new StatusCommand(probe));
+        }
+        try {
+            shell.addAll(group).waitForFinish();
+        } catch (IOException e) {
+            Log.e("Shell", "Unable to run capability probes");
+            Log.e("Trace", e.getMessage());
+            return null;
+        } catch (TimeoutException e) {
+            Log.e("Shell", "A timeout was reached");
+            Log.e("Shell", e.getMessage());
+            return null;
+        } finally {
+            SharedShell.release(shell);
+        }
+
+        int flags = fileFlags();
+        for (int i = 0; i < PROBED.length; i++) {
+            if (group.get(i).getExitCode() == 0) {
+                flags |= PROBED[i];
+            }
+        }
+        return flags;
+    }
+}
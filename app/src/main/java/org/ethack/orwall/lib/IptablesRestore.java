@@ -0,0 +1,195 @@
+package org.ethack.orwall.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Batch of iptables rules, rendered in iptables-restore format.
+ * Rules are given with the same syntax as the one we pass to the iptables binary
+ * (for example "-t nat -A ow_OUTPUT -d 127.0.0.1/32 -j RETURN"), and are grouped by table
+ * so that the whole batch can be applied with a single "iptables-restore --noflush" call.
+ */
+public class IptablesRestore {
+    /**
+     * Tables are committed in this order by default: filter comes last, as it holds the boot lock removal.
+     */
+    private final static String[] TABLE_ORDER = {"raw", "mangle", "nat", "filter"};
+    private final static String DEFAULT_TABLE = "filter";
+
+    private final String[] tableOrder;
+
+    // legacy: "iptables-restore: line 12 failed", nf_tables: "Error occurred at line: 12"
+    private final static Pattern FAILED_LINE = Pattern.compile("line:? (\\d+)");
+
+    private final ArrayList<String> rules = new ArrayList<>();
+    // rendered line number -> index of the rule in rules, updated by render()
+    private final ArrayList<Integer> lines = new ArrayList<>();
+    // rendered line number of each COMMIT, updated by render()
+    private final ArrayList<Integer> commits = new ArrayList<>();
+
+    public IptablesRestore() {
+        this(TABLE_ORDER);
+    }
+
+    /**
+     * @param tableOrder tables in commit order; other tables come next, in order of appearance
+     */
+    public IptablesRestore(final String[] tableOrder) {
+        this.tableOrder = tableOrder;
+    }
+
+    public void add(final String rule) {
+        this.rules.add(rule);
+    }
+
+    public boolean isEmpty() {
+        return this.rules.isEmpty();
+    }
+
+    public int size() {
+        return this.rules.size();
+    }
+
+    /**
+     * @return rules still pending in this batch, in insertion order
+     */
+    public List<String> getRules() {
+        return new ArrayList<>(this.rules);
+    }
+
+    /**
+     * Get the table a rule applies to.
+     * @param rule iptables arguments
+     * @return table name, "filter" if none is specified
+     */
+    public static String getTable(final String rule) {
+        String trimmed = rule.trim();
+        if (trimmed.startsWith("-t ")) {
+            int end = trimmed.indexOf(' ', 3);
+            return (end < 0 ? trimmed.substring(3) : trimmed.substring(3, end));
+        }
+        return DEFAULT_TABLE;
+    }
+
+    /**
+     * Remove the table selection from a rule, as iptables-restore gets it from the "*table" header.
+     * @param rule iptables arguments
+     * @return rule without "-t table"
+     */
+    public static String stripTable(final String rule) {
+        String trimmed = rule.trim();
+        if (trimmed.startsWith("-t ")) {
+            int end = trimmed.indexOf(' ', 3);
+            return (end < 0 ? "" : trimmed.substring(end + 1).trim());
+        }
+        return trimmed;
+    }
+
+    /**
+     * Render the batch in iptables-restore format.
+     * Rules keep their relative order inside a table.
+     * @return iptables-restore input
+     */
+    public String render() {
+        Map<String, ArrayList<Integer>> tables = new LinkedHashMap<>();
+        for (String table : this.tableOrder) {
+            tables.put(table, new ArrayList<Integer>());
+        }
+        for (int i = 0; i < this.rules.size(); i++) {
+            String table = getTable(this.rules.get(i));
+            if (!tables.containsKey(table)) {
+                tables.put(table, new ArrayList<Integer>());
+            }
+            tables.get(table).add(i);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        this.lines.clear();
+        this.commits.clear();
+        // line numbers start at 1
+        this.lines.add(null);
+
+        for (Map.Entry<String, ArrayList<Integer>> entry : tables.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+
+            sb.append('*').append(entry.getKey()).append('\n');
+            this.lines.add(null);
+            for (int index : entry.getValue()) {
+                sb.append(stripTable(this.rules.get(index))).append('\n');
+                this.lines.add(index);
+            }
+            sb.append("COMMIT\n");
+            this.commits.add(this.lines.size());
+            this.lines.add(null);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Extract the failing line number from iptables-restore output.
+     * @param output iptables-restore stdout/stderr
+     * @return line number, or -1 if none was found
+     */
+    public static int parseFailedLine(final String output) {
+        if (output == null) return -1;
+        Matcher matcher = FAILED_LINE.matcher(output);
+        if (matcher.find()) {
+            return Integer.parseInt(matcher.group(1));
+        }
+        return -1;
+    }
+
+    /**
+     * Account for a failed iptables-restore run: the failing rule is dropped from the batch.
+     * render() must have been called first.
+     *
+     * @param line failing line number, as reported by iptables-restore
+     * @return the failing rule, or null if the line doesn't match any rule
+     */
+    public String fail(final int line) {
+        if (line <= 0 || line >= this.lines.size()) return null;
+
+        Integer index = this.lines.get(line);
+        if (index == null) return null;
+        String failed = this.rules.remove((int) index);
+        // indexes moved
+        this.lines.clear();
+        this.commits.clear();
+        return failed;
+    }
+
+    /**
+     * Tells if tables may have been committed before a failing line. Legacy iptables-restore
+     * commits each table on its own, nf_tables applies the whole input at once or nothing, and
+     * both may report failures the same way: only the kernel knows.
+     * render() must have been called first.
+     *
+     * @param line failing line number, as reported by iptables-restore
+     * @return true if a COMMIT comes before that line
+     */
+    public boolean hasCommitBefore(final int line) {
+        return !this.commits.isEmpty() && this.commits.get(0) < line;
+    }
+
+    /**
+     * Drop rules which wouldn't change anything anymore, e.g. after a partial commit
+     * @param current kernel ruleset
+     * @return number of rules dropped
+     */
+    public int removeApplied(final IptablesSnapshot current) {
+        int before = this.rules.size();
+        for (Iterator<String> it = this.rules.iterator(); it.hasNext(); ) {
+            if (current.isApplied(it.next())) {
+                it.remove();
+            }
+        }
+        this.lines.clear();
+        this.commits.clear();
+        return before - this.rules.size();
+    }
+}
@@ -0,0 +1,359 @@
+package org.ethack.orwall.lib;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory copy of the kernel ruleset, as listed by "iptables -t table -S".
+ * It answers existence and ordering queries without running one "iptables -C" per question.
+ *
+ * Snapshots are cached per binary for a short time, and dropped as soon as we change anything.
+ * A generation counter, bumped on every change, keeps a listing which started before a change
+ * from being cached after it.
+ * Rules are compared on a canonical form, as iptables doesn't list them back exactly the way we
+ * wrote them (implicit "-m tcp", "/32" netmasks, options order, comments...).
+ */
+public class IptablesSnapshot {
+    public final static long TTL = 2000;
+
+    // owner ranges: "10001-10005", "10001:10005" on some old xtables builds, or "10001-10001"
+    private final static Pattern OWNER_RANGE = Pattern.compile("(\\d+)[-:](\\d+)");
+
+    private final static Map<String, IptablesSnapshot> cache = new HashMap<>();
+    private static long generation = 0;
+
+    private final long created = SystemClock.elapsedRealtime();
+    // table -> chain -> canonical rules, in kernel order
+    private final Map<String, Map<String, Chain>> tables = new HashMap<>();
+
+    private static class Chain {
+        private String policy = null;
+        private final ArrayList<String> rules = new ArrayList<>();
+        private final ArrayList<String> keys = new ArrayList<>();
+    }
+
+    /**
+     * Get the cached snapshot for a binary
+     * @param binary iptables or ip6tables path
+     * @return snapshot, or null if there is none or it is too old
+     */
+    public static synchronized IptablesSnapshot getCached(final String binary) {
+        IptablesSnapshot snapshot = cache.get(binary);
+        if (snapshot != null && SystemClock.elapsedRealtime() - snapshot.created > TTL) {
+            cache.remove(binary);
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return current generation, to be read before listing rules
+     */
+    public static synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache a snapshot, unless rules changed since it was started
+     * @param binary iptables or ip6tables path
+     * @param snapshot new snapshot
+     * @param started generation read before listing rules
+     * @return false if the snapshot is outdated, and wasn't cached
+     */
+    public static synchronized boolean putCached(final String binary, final IptablesSnapshot snapshot, final long started) {
+        if (started != generation) {
+            return false;
+        }
+        cache.put(binary, snapshot);
+        return true;
+    }
+
+    /**
+     * Forget every cached snapshot. Must be called whenever rules are changed, before and after
+     * changing them: a listing running meanwhile may or may not include the change.
+     */
+    public static synchronized void invalidate() {
+        generation++;
+        cache.clear();
+    }
+
+    /**
+     * Add a table to the snapshot
+     * @param table table name
+     * @param output "iptables -t table -S" output
+     */
+    public void parse(final String table, final String output) {
+        Map<String, Chain> chains = new LinkedHashMap<>();
+        this.tables.put(table, chains);
+
+        for (String line : output.split("\n")) {
+            List<String> tokens = tokenize(line);
+            if (tokens.size() < 2) continue;
+
+            String verb = tokens.get(0);
+            String chainName = tokens.get(1);
+            Chain chain = chains.get(chainName);
+            if (chain == null) {
+                chain = new Chain();
+                chains.put(chainName, chain);
+            }
+            if (verb.equals("-P") && tokens.size() > 2) {
+                chain.policy = tokens.get(2);
+            } else if (verb.equals("-A")) {
+                // keep the listed spec as is, quoting included, so that it can be deleted later
+                String raw = line.trim();
+                raw = raw.substring(raw.indexOf(chainName, 2) + chainName.length()).trim();
+                chain.rules.add(raw);
+                chain.keys.add(canonical(tokens.subList(2, tokens.size())));
+            }
+        }
+    }
+
+    public boolean hasTable(final String table) {
+        return this.tables.containsKey(table);
+    }
+
+    public boolean hasChain(final String table, final String chain) {
+        return getChain(table, chain) != null;
+    }
+
+    /**
+     * @return chain policy, or null for user-defined (or missing) chains
+     */
+    public String getPolicy(final String table, final String chain) {
+        Chain c = getChain(table, chain);
+        return (c == null ? null : c.policy);
+    }
+
+    /**
+     * @return rules of a chain, as listed by iptables, without "-A chain"
+     */
+    public List<String> getRules(final String table, final String chain) {
+        Chain c = getChain(table, chain);
+        if (c == null) return Collections.emptyList();
+        return Collections.unmodifiableList(c.rules);
+    }
+
+    /**
+     * @return names of the chains of a table
+     */
+    public List<String> getChains(final String table) {
+        Map<String, Chain> chains = this.tables.get(table);
+        if (chains == null) return Collections.emptyList();
+        return new ArrayList<>(chains.keySet());
+    }
+
+    /**
+     * Position of a rule in its chain.
+     * @param rule rule with our usual syntax, e.g. "-t nat -C ow_OUTPUT -d 127.0.0.1 -j RETURN"
+     * @return position, starting at 0, or -1 if the rule isn't there
+     */
+    public int indexOf(final String rule) {
+        List<String> tokens = tokenize(IptablesRestore.stripTable(rule));
+        if (tokens.size() < 2) return -1;
+
+        Chain c = getChain(IptablesRestore.getTable(rule), tokens.get(1));
+        if (c == null) return -1;
+
+        int from = 2;
+        // "-I chain 3 ..." carries a position
+        if (from < tokens.size() && tokens.get(from).matches("\\d+")) from++;
+        return c.keys.indexOf(canonical(tokens.subList(from, tokens.size())));
+    }
+
+    /**
+     * Get a rule as listed by iptables, which is the safest way to delete it: "-D" needs the
+     * very same matches, comments included.
+     * @param rule rule with our usual syntax
+     * @return listed spec, without table nor chain, or null if the rule isn't there
+     */
+    public String find(final String rule) {
+        int index = indexOf(rule);
+        if (index < 0) return null;
+        List<String> tokens = tokenize(IptablesRestore.stripTable(rule));
+        return getChain(IptablesRestore.getTable(rule), tokens.get(1)).rules.get(index);
+    }
+
+    /**
+     * Checks if a rule exists, like "iptables -C" would.
+     * @param rule rule with our usual syntax
+     * @return true if it exists
+     */
+    public boolean contains(final String rule) {
+        return indexOf(rule) >= 0;
+    }
+
+    /**
+     * Checks if applying a rule would change nothing, e.g. creating an existing chain, adding an
+     * existing rule or deleting a missing one.
+     * @param rule rule with our usual syntax
+     * @return true if the rule can be skipped
+     */
+    public boolean isApplied(final String rule) {
+        List<String> tokens = tokenize(IptablesRestore.stripTable(rule));
+        if (tokens.size() < 2) return false;
+
+        String table = IptablesRestore.getTable(rule);
+        Chain chain = getChain(table, tokens.get(1));
+        switch (tokens.get(0)) {
+            case "-N":
+                return chain != null;
+            case "-X":
+                return chain == null;
+            case "-E":
+                // renamed already
+                return chain == null && tokens.size() > 2 && getChain(table, tokens.get(2)) != null;
+            case "-F":
+                return chain == null || chain.rules.isEmpty();
+            case "-P":
+                return chain != null && tokens.size() > 2 && tokens.get(2).equals(chain.policy);
+            case "-A":
+            case "-I":
+                return contains(rule);
+            case "-D":
+                return !contains(rule);
+            default:
+                return false;
+        }
+    }
+
+    private Chain getChain(final String table, final String chain) {
+        Map<String, Chain> chains = this.tables.get(table);
+        return (chains == null ? null : chains.get(chain));
+    }
+
+    /**
+     * Canonical form of a rule specification, used to compare our rules with listed ones:
+     * "-m module" and comments are dropped, addresses get their netmask, state lists are sorted,
+     * owner ranges get a single form, and options are sorted.
+     * @param spec rule tokens, without table nor chain
+     * @return canonical key
+     */
+    public static String canonical(final List<String> spec) {
+        ArrayList<String> options = new ArrayList<>();
+        StringBuilder option = null;
+        boolean negate = false;
+        String flag = null;
+
+        for (int i = 0; i < spec.size(); i++) {
+            String token = spec.get(i);
+            if (token.equals("!")) {
+                if (option != null && flag != null && option.length() == flag.length()) {
+                    // old syntax: "-o ! lo"
+                    option.insert(0, "! ");
+                } else {
+                    negate = true;
+                }
+                continue;
+            }
+            if (token.equals("-m") || token.equals("--match")) {
+                i++;
+                continue;
+            }
+            if (token.startsWith("-") && !token.matches("-\\d+")) {
+                addOption(options, option, flag);
+                flag = token;
+                option = new StringBuilder();
+                if (negate) option.append("! ");
+                option.append(token);
+                negate = false;
+                continue;
+            }
+            if (option == null) continue;
+            option.append(' ').append(normalizeValue(flag, token));
+        }
+        addOption(options, option, flag);
+
+        Collections.sort(options);
+        return join(options);
+    }
+
+    private static void addOption(final List<String> options, final StringBuilder option, final String flag) {
+        if (option == null || flag.equals("--comment")) return;
+        String value = option.toString();
+        // REJECT default, listed even if we didn't ask for it
+        if (value.equals("--reject-with icmp-port-unreachable") || value.equals("--reject-with icmp6-port-unreachable")) return;
+        options.add(value);
+    }
+
+    private static String normalizeValue(final String flag, final String value) {
+        switch (flag) {
+            case "-s":
+            case "-d":
+            case "--source":
+            case "--destination":
+                return (value.contains("/") ? value : value + "/32");
+            case "--state":
+            case "--ctstate":
+                ArrayList<String> states = new ArrayList<>();
+                Collections.addAll(states, value.split(","));
+                Collections.sort(states);
+                return join(states, ",");
+            case "--uid-owner":
+            case "--gid-owner":
+                return normalizeOwner(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * @return "first-last" for a range, or the single ID if both ends are the same
+     */
+    private static String normalizeOwner(final String value) {
+        Matcher matcher = OWNER_RANGE.matcher(value);
+        if (!matcher.matches()) {
+            return value;
+        }
+        long first = Long.parseLong(matcher.group(1));
+        long last = Long.parseLong(matcher.group(2));
+        return (first == last ? String.valueOf(first) : first + "-" + last);
+    }
+
+    /**
+     * Split a rule on spaces, keeping double-quoted strings together
+     */
+    static List<String> tokenize(final String line) {
+        ArrayList<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                any = true;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (any) tokens.add(current.toString());
+                current.setLength(0);
+                any = false;
+            } else {
+                current.append(c);
+                any = true;
+            }
+        }
+        if (any) tokens.add(current.toString());
+        return tokens;
+    }
+
+    private static String join(final List<String> tokens) {
+        return join(tokens, " ");
+    }
+
+    private static String join(final List<String> tokens, final String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (sb.length() > 0) sb.append(separator);
+            sb.append(token);
+        }
+        return sb.toString();
+    }
+}
@@ -1,55 +1,112 @@
 package org.ethack.orwall.lib;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LongSparseArray;
 
 import org.ethack.orwall.database.natDBHelper;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Helper: manage apps in SQLite, in order to prevent concurrent accesses to the DB.
+ * All instances share the same connection, which stays open.
+ *
+ * Rules are cached by UID for the whole process: the table is read once, on first use, and every
+ * write goes to the DB then to the cache, under the same lock. Reads never touch the disk; they
+ * return copies, as callers (e.g. AppListAdapter) modify the rules they get.
+ * Listeners are told about each change on the main thread.
  */
 public class NatRules {
     private final static String TAG = "NatRules";
     private natDBHelper dbHelper;
     private Context context;
 
+    public interface OnRuleChangedListener {
+        /**
+         * @param appUID application whose rule changed
+         * @param rule new rule, or null if it was removed
+         */
+        void onRuleChanged(long appUID, AppRule rule);
+    }
+
+    // UID -> rule, null until first use; guarded by NatRules.class
+    private static LongSparseArray<AppRule> cache = null;
+    private static final List<OnRuleChangedListener> listeners = new ArrayList<>();
+    private static Handler handler = null;
+
     public NatRules(Context context) {
-        this.dbHelper = new natDBHelper(context);
+        this.dbHelper = natDBHelper.getInstance(context);
         this.context = context;
     }
 
-    public boolean removeAppFromRules(Long appUID) {
-        String filter = natDBHelper.COLUMN_APPUID + "=?";
-        String[] filterArgs = {String.valueOf(appUID)};
+    public static synchronized void addListener(OnRuleChangedListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
 
-        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
-        int result = db.delete(natDBHelper.NAT_TABLE_NAME, filter, filterArgs);
-        db.close();
-        return (result == 1);
+    public static synchronized void removeListener(OnRuleChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean removeAppFromRules(Long appUID) {
+        synchronized (NatRules.class) {
+            getCache();
+            if (!dbRemove(appUID)) return false;
+            cache.delete(appUID);
+        }
+        notifyListeners(appUID, null);
+        return true;
     }
 
     public boolean addAppToRules(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
+        AppRule rule = new AppRule(true, appName, appUID, onionType, localHost, localNetwork);
+        synchronized (NatRules.class) {
+            getCache();
+            if (!dbInsert(rule)) return false;
+            cache.put(appUID, rule);
+        }
+        notifyListeners(appUID, rule);
+        return true;
+    }
 
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(natDBHelper.COLUMN_APPNAME, appName);
-        contentValues.put(natDBHelper.COLUMN_APPUID, String.valueOf(appUID));
-        contentValues.put(natDBHelper.COLUMN_ONIONTYPE, onionType);
-        contentValues.put(natDBHelper.COLUMN_LOCALHOST, localHost);
-        contentValues.put(natDBHelper.COLUMN_LOCALNETWORK, localNetwork);
+    private boolean dbRemove(Long appUID) {
+        SQLiteStatement statement = this.dbHelper.getDeleteStatement();
+        synchronized (statement) {
+            statement.bindLong(1, appUID);
+            int result = statement.executeUpdateDelete();
+            statement.clearBindings();
+            return (result == 1);
+        }
+    }
 
-        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
-        long result = db.insert(natDBHelper.NAT_TABLE_NAME, null, contentValues);
-        db.close();
-        return (result > 0);
+    private boolean dbInsert(AppRule rule) {
+        SQLiteStatement statement = this.dbHelper.getInsertStatement();
+        synchronized (statement) {
+            bindStringOrNull(statement, 1, rule.getPkgName());
+            statement.bindLong(2, rule.getAppUID());
+            statement.bindLong(3, rule.getPolicy());
+            try {
+                return (statement.executeInsert() > 0);
+            } catch (SQLiteConstraintException e) {
+                Log.e(TAG, "Constraint exception");
+                Log.e(TAG, e.getMessage());
+                return false;
+            } finally {
+                statement.clearBindings();
+            }
+        }
     }
 
     public boolean addAppToRules(AppRule appRule) {
@@ -62,57 +119,173 @@ public class NatRules {
         );
     }
 
+    /**
+     * @return copies of all rules
+     */
     public ArrayList<AppRule> getAllRules() {
         ArrayList<AppRule> list = new ArrayList<>();
+        synchronized (NatRules.class) {
+            LongSparseArray<AppRule> rules = getCache();
+            for (int i = 0; i < rules.size(); i++) {
+                list.add(copy(rules.valueAt(i)));
+            }
+        }
+        return list;
+    }
 
-        SQLiteDatabase db = this.dbHelper.getReadableDatabase();
-        String[] selection = {
-                natDBHelper.COLUMN_APPNAME,
-                natDBHelper.COLUMN_APPUID,
-                natDBHelper.COLUMN_ONIONTYPE,
-                natDBHelper.COLUMN_LOCALHOST,
-                natDBHelper.COLUMN_LOCALNETWORK
-        };
-        Cursor cursor = db.query(natDBHelper.NAT_TABLE_NAME, selection, null, null, null, null, null);
-
-        if (!cursor.moveToFirst()) {
-            Log.e(TAG, "getAllRules size is null!");
-            return list;
+    /**
+     * @return copies of all rules, indexed by UID
+     */
+    public LongSparseArray<AppRule> getRulesIndex() {
+        synchronized (NatRules.class) {
+            LongSparseArray<AppRule> rules = getCache();
+            LongSparseArray<AppRule> index = new LongSparseArray<>(rules.size());
+            for (int i = 0; i < rules.size(); i++) {
+                index.append(rules.keyAt(i), copy(rules.valueAt(i)));
+            }
+            return index;
         }
+    }
 
-        AppRule appRule;
+    private ArrayList<AppRule> dbGetAllRules() {
+        ArrayList<AppRule> list = new ArrayList<>();
 
-        do {
-            appRule = new AppRule(
-                    true,
-                    cursor.getString(0),
-                    cursor.getLong(1),
-                    cursor.getString(2),
-                    cursor.getLong(3) == 1,
-                    cursor.getLong(4) == 1
-            );
-            list.add(appRule);
-        } while (cursor.moveToNext());
-
-        cursor.close();
-        db.close();
+        SQLiteDatabase db = this.dbHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery(natDBHelper.SELECT_ALL, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                Log.e(TAG, "getAllRules size is null!");
+                return list;
+            }
+            do {
+                list.add(fromCursor(cursor));
+            } while (cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
         Log.d(TAG, "getAllRules size: " + String.valueOf(list.size()));
         return list;
     }
 
     public int getRuleCount() {
-        SQLiteDatabase db = this.dbHelper.getReadableDatabase();
-        Cursor cursor = db.query(natDBHelper.NAT_TABLE_NAME, null, null, null, null, null, null);
-        cursor.moveToFirst();
+        synchronized (NatRules.class) {
+            return getCache().size();
+        }
+    }
+
+    /*
+     * Bulk operations: a single transaction, hence a single sync, whatever the number of rules.
+     * Each of them returns one result per given row, in the same order; a failing row doesn't
+     * prevent the others from being applied. The cache is only updated once the transaction is
+     * committed.
+     */
+
+    /**
+     * Add rules
+     * @return true for each rule which was added
+     */
+    public boolean[] addAll(List<AppRule> rules) {
+        return bulk(BULK_ADD, rules, null);
+    }
+
+    /**
+     * Update existing rules
+     * @return true for each rule which was updated
+     */
+    public boolean[] updateAll(List<AppRule> rules) {
+        return bulk(BULK_UPDATE, rules, null);
+    }
+
+    /**
+     * Remove rules
+     * @return true for each UID which had a rule
+     */
+    public boolean[] removeAll(List<Long> appUIDs) {
+        return bulk(BULK_REMOVE, null, appUIDs);
+    }
 
-        int total = cursor.getCount();
-        cursor.close();
-        db.close();
-        return total;
+    /**
+     * Replace every stored rule with the given ones, e.g. when restoring a backup
+     * @return true for each rule which was added
+     */
+    public boolean[] replaceAll(List<AppRule> rules) {
+        return bulk(BULK_REPLACE, rules, null);
+    }
+
+    private final static int BULK_ADD = 0;
+    private final static int BULK_UPDATE = 1;
+    private final static int BULK_REMOVE = 2;
+    private final static int BULK_REPLACE = 3;
+
+    private boolean[] bulk(final int operation, final List<AppRule> rules, final List<Long> appUIDs) {
+        int size = (operation == BULK_REMOVE ? appUIDs.size() : rules.size());
+        boolean[] results = new boolean[size];
+        ArrayList<AppRule> copies = new ArrayList<>(size);
+        if (rules != null) {
+            for (AppRule rule : rules) {
+                copies.add(copy(rule));
+            }
+        }
+        LongSparseArray<AppRule> before;
+        LongSparseArray<AppRule> after;
+
+        synchronized (NatRules.class) {
+            before = getCache();
+            SQLiteDatabase db = this.dbHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                if (operation == BULK_REPLACE) {
+                    db.delete(natDBHelper.NAT_TABLE_NAME, null, null);
+                }
+                for (int i = 0; i < size; i++) {
+                    switch (operation) {
+                        case BULK_ADD:
+                        case BULK_REPLACE:
+                            results[i] = dbInsert(copies.get(i));
+                            break;
+                        case BULK_UPDATE:
+                            results[i] = dbUpdate(copies.get(i));
+                            break;
+                        case BULK_REMOVE:
+                            results[i] = dbRemove(appUIDs.get(i));
+                            break;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            after = (operation == BULK_REPLACE ? new LongSparseArray<AppRule>(size) : before.clone());
+            for (int i = 0; i < size; i++) {
+                if (!results[i]) continue;
+                if (operation == BULK_REMOVE) {
+                    after.delete(appUIDs.get(i));
+                } else {
+                    after.put(copies.get(i).getAppUID(), copies.get(i));
+                }
+            }
+            cache = after;
+        }
+
+        // tell listeners about rules which actually changed
+        for (int i = 0; i < before.size(); i++) {
+            if (after.indexOfKey(before.keyAt(i)) < 0) {
+                notifyListeners(before.keyAt(i), null);
+            }
+        }
+        for (int i = 0; i < after.size(); i++) {
+            if (before.get(after.keyAt(i)) != after.valueAt(i)) {
+                notifyListeners(after.keyAt(i), after.valueAt(i));
+            }
+        }
+        Log.d(TAG, String.format("Bulk operation %d on %d row(s)", operation, size));
+        return results;
     }
 
     public void importFromSharedPrefs(Set oldRules) {
         PackageManager packageManager = this.context.getPackageManager();
+        ArrayList<AppRule> rules = new ArrayList<>();
         for (Object rule : oldRules.toArray()) {
             HashMap<String, Long> r = (HashMap) rule;
             Long uid = (Long) r.values().toArray()[0];
@@ -120,77 +293,115 @@ public class NatRules {
             // ensure we migrate only existing applications
             try {
                 packageManager.getApplicationInfo(name, PackageManager.GET_META_DATA);
-                addAppToRules(uid, name, Constants.DB_ONION_TYPE_TOR, false, false);
+                rules.add(new AppRule(true, name, uid, Constants.DB_ONION_TYPE_TOR, false, false));
             } catch (PackageManager.NameNotFoundException e) {
             }
         }
+        addAll(rules);
     }
 
     public boolean update(AppRule appRule) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(natDBHelper.COLUMN_APPNAME, appRule.getPkgName());
-        contentValues.put(natDBHelper.COLUMN_APPUID, String.valueOf(appRule.getAppUID()));
-        contentValues.put(natDBHelper.COLUMN_ONIONTYPE, appRule.getOnionType());
-        contentValues.put(natDBHelper.COLUMN_LOCALHOST, appRule.getLocalHost()?1:0);
-        contentValues.put(natDBHelper.COLUMN_LOCALNETWORK, appRule.getLocalNetwork()?1:0);
-
-        String filter = natDBHelper.COLUMN_APPUID + "=?";
-        String[] filterArgs = {String.valueOf(appRule.getAppUID())};
-        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
-
-        int nb_row = 0;
-        try {
-            nb_row = db.update(natDBHelper.NAT_TABLE_NAME, contentValues, filter, filterArgs);
-        } catch (SQLiteConstraintException e) {
-            Log.e(TAG, "Constraint exception");
-            Log.e(TAG, e.getMessage());
+        AppRule rule = copy(appRule);
+        synchronized (NatRules.class) {
+            getCache();
+            if (!dbUpdate(rule)) return false;
+            cache.put(rule.getAppUID(), rule);
         }
-        db.close();
-
-        return (nb_row == 1);
+        notifyListeners(rule.getAppUID(), copy(rule));
+        return true;
     }
 
-    public AppRule getAppRule(Long appUID) {
-        SQLiteDatabase db = this.dbHelper.getReadableDatabase();
+    private boolean dbUpdate(AppRule appRule) {
+        SQLiteStatement statement = this.dbHelper.getUpdateStatement();
+        synchronized (statement) {
+            bindStringOrNull(statement, 1, appRule.getPkgName());
+            statement.bindLong(2, appRule.getPolicy());
+            statement.bindLong(3, appRule.getAppUID());
 
-        String[] filterArgs = {
-                String.valueOf(appUID)
-        };
-        String[] selection = {
-                natDBHelper.COLUMN_APPNAME,
-                natDBHelper.COLUMN_APPUID,
-                natDBHelper.COLUMN_ONIONTYPE,
-                natDBHelper.COLUMN_LOCALHOST,
-                natDBHelper.COLUMN_LOCALNETWORK
-        };
-
-        Cursor cursor = db.query(
-                natDBHelper.NAT_TABLE_NAME,
-                selection,
-                natDBHelper.COLUMN_APPUID + "=?",
-                filterArgs,
-                null,
-                null,
-                null
-        );
+            int nb_row = 0;
+            try {
+                nb_row = statement.executeUpdateDelete();
+            } catch (SQLiteConstraintException e) {
+                Log.e(TAG, "Constraint exception");
+                Log.e(TAG, e.getMessage());
+            } finally {
+                statement.clearBindings();
+            }
+            return (nb_row == 1);
+        }
+    }
 
+    public AppRule getAppRule(Long appUID) {
         AppRule appRule;
-        if (cursor.moveToFirst()) {
-            appRule = new AppRule(
-                    true,
-                    cursor.getString(0),
-                    cursor.getLong(1),
-                    cursor.getString(2),
-                    cursor.getLong(3) == 1,
-                    cursor.getLong(4) == 1
-            );
-        } else {
-            appRule = new AppRule();
+        synchronized (NatRules.class) {
+            appRule = getCache().get(appUID);
+        }
+        if (appRule == null) {
             Log.e(TAG, "Unable to get rules for " + String.valueOf(appUID));
+            return new AppRule();
         }
-        cursor.close();
-        db.close();
+        return copy(appRule);
+    }
 
-        return appRule;
+    /**
+     * Load the cache if needed. Must be called with the NatRules.class lock held.
+     */
+    private LongSparseArray<AppRule> getCache() {
+        if (cache == null) {
+            ArrayList<AppRule> rules = dbGetAllRules();
+            cache = new LongSparseArray<>(rules.size());
+            for (AppRule rule : rules) {
+                cache.put(rule.getAppUID(), rule);
+            }
+        }
+        return cache;
+    }
+
+    private static AppRule copy(AppRule rule) {
+        AppRule copy = new AppRule();
+        copy.setStored(true);
+        copy.setPkgName(rule.getPkgName());
+        copy.setAppUID(rule.getAppUID());
+        copy.setPolicy(rule.getPolicy());
+        return copy;
+    }
+
+    private static void notifyListeners(final long appUID, final AppRule rule) {
+        final List<OnRuleChangedListener> notified;
+        synchronized (NatRules.class) {
+            if (listeners.isEmpty()) return;
+            notified = new ArrayList<>(listeners);
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnRuleChangedListener listener : notified) {
+                    listener.onRuleChanged(appUID, (rule == null ? null : copy(rule)));
+                }
+            }
+        });
+    }
+
+    /**
+     * Build a rule from a row of natDBHelper.SELECT_ALL
+     */
+    private static AppRule fromCursor(Cursor cursor) {
+        AppRule rule = new AppRule();
+        rule.setStored(true);
+        rule.setPkgName(cursor.getString(0));
+        rule.setAppUID(cursor.getLong(1));
+        rule.setPolicy(cursor.getInt(2));
+        return rule;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 }
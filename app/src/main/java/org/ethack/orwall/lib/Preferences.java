@@ -19,6 +19,12 @@ public final class Preferences {
     public final static String PREF_DNS_PORT = "proxy_dns";
     public final static String PREF_KEY_ADB_ENABLED = "enable_adb";
     public final static String PREF_KEY_SSH_ENABLED = "enable_ssh";
+    public final static String PREF_KEY_MARK_MODE = "mark_mode";
+    public final static String PREF_KEY_LAST_BOOT_TIME = "last_boot_time";
+    public final static String PREF_KEY_LAST_BOOT_RULES = "last_boot_rules";
+    public final static String PREF_KEY_DRIFT_INTERVAL = "drift_interval";
+    public final static String PREF_KEY_DRIFT_WAKEUP = "drift_wakeup";
+    public final static String PREF_KEY_DRIFT_REPAIRS = "drift_repairs";
     public final static String PREF_KEY_ENFORCE_INIT = "enforce_init_script";
     //public final static String PREF_KEY_DISABLE_INIT = "deactivate_init_script";
     public final static String PREF_KEY_BROWSER_GRACETIME = "browser_gracetime";
@@ -32,6 +38,7 @@ public final class Preferences {
     public static long ORBOT_DNS_PROXY = 5400;
 
     public final static long BROWSER_GRACETIME = 5;
+    public final static long DRIFT_INTERVAL = 15;
 
     private static boolean getBoolean(Context context, String key, boolean def){
         return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getBoolean(key, def);
@@ -41,6 +48,14 @@ public final class Preferences {
         context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().putBoolean(key, value).apply();
     }
 
+    private static long getLong(Context context, String key, long def){
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getLong(key, def);
+    }
+
+    private static void putLong(Context context, String key, long value){
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().putLong(key, value).apply();
+    }
+
     private static String getString(Context context, String key, String def){
         return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getString(key, def);
     }
@@ -119,6 +134,28 @@ public final class Preferences {
         return getBoolean(context, PREF_KEY_SSH_ENABLED, false);
     }
 
+    public static boolean isMarkModeEnabled(Context context){
+        return getBoolean(context, PREF_KEY_MARK_MODE, false);
+    }
+
+    /**
+     * Time it took for the last boot to get every rule in place, and how many app rules it had.
+     */
+    public static void setLastBoot(Context context, long time, long rules){
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putLong(PREF_KEY_LAST_BOOT_TIME, time)
+                .putLong(PREF_KEY_LAST_BOOT_RULES, rules)
+                .apply();
+    }
+
+    public static long getLastBootTime(Context context){
+        return getLong(context, PREF_KEY_LAST_BOOT_TIME, -1);
+    }
+
+    public static long getLastBootRules(Context context){
+        return getLong(context, PREF_KEY_LAST_BOOT_RULES, -1);
+    }
+
     public static boolean isEnforceInitScript(Context context){
         return getBoolean(context, PREF_KEY_ENFORCE_INIT, true);
     }
@@ -127,6 +164,32 @@ public final class Preferences {
         putBoolean(context, PREF_KEY_ENFORCE_INIT, value);
     }
 
+    /**
+     * @return minutes between two background rules checks, 0 if disabled
+     */
+    public static long getDriftInterval(Context context){
+        try {
+            return Long.valueOf(getString(context, PREF_KEY_DRIFT_INTERVAL, String.valueOf(DRIFT_INTERVAL)));
+        } catch (NumberFormatException e) {
+            return DRIFT_INTERVAL;
+        }
+    }
+
+    public static boolean isDriftWakeup(Context context){
+        return getBoolean(context, PREF_KEY_DRIFT_WAKEUP, false);
+    }
+
+    /**
+     * @return number of times rules were found out of sync and repaired
+     */
+    public static long getDriftRepairs(Context context){
+        return getLong(context, PREF_KEY_DRIFT_REPAIRS, 0);
+    }
+
+    public static void incDriftRepairs(Context context){
+        putLong(context, PREF_KEY_DRIFT_REPAIRS, getDriftRepairs(context) + 1);
+    }
+
     public static String getBrowserGraceTime(Context context){
         return getString(context, PREF_KEY_BROWSER_GRACETIME, String.valueOf(BROWSER_GRACETIME));
     }
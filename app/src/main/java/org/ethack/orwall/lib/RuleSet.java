@@ -0,0 +1,102 @@
+package org.ethack.orwall.lib;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Desired state for a set of rules.
+ * Rules are stored with the syntax Iptables generates them ("[-t table] -A|-I chain spec"), and
+ * identified by table, chain and canonical spec, so that they can be compared with the kernel
+ * ruleset whatever the way iptables lists them back.
+ */
+public class RuleSet {
+    // key -> rule, in generation order
+    private final Map<String, String> rules = new LinkedHashMap<>();
+
+    /**
+     * Add a rule to the set
+     * @param rule rule, with its insertion verb (-A or -I)
+     */
+    public void add(final String rule) {
+        String key = key(rule);
+        if (key != null && !this.rules.containsKey(key)) {
+            this.rules.put(key, rule);
+        }
+    }
+
+    public void addAll(final RuleSet other) {
+        for (String rule : other.getRules()) {
+            add(rule);
+        }
+    }
+
+    public boolean contains(final String rule) {
+        String key = key(rule);
+        return key != null && this.rules.containsKey(key);
+    }
+
+    public boolean isEmpty() {
+        return this.rules.isEmpty();
+    }
+
+    public int size() {
+        return this.rules.size();
+    }
+
+    public List<String> getRules() {
+        return new ArrayList<>(this.rules.values());
+    }
+
+    /**
+     * Compute the changes needed to go from the kernel state to this set.
+     * Only rules of the managed set are considered: kernel rules this set doesn't know about are
+     * left untouched, even in the same chains.
+     *
+     * @param managed every rule we could have installed (must include this set)
+     * @param current kernel ruleset
+     * @return rules to apply: deletions first, then insertions
+     */
+    public List<String> diff(final RuleSet managed, final IptablesSnapshot current) {
+        ArrayList<String> changes = new ArrayList<>();
+
+        for (Map.Entry<String, String> entry : managed.rules.entrySet()) {
+            if (this.rules.containsKey(entry.getKey())) continue;
+            String listed = current.find(entry.getValue());
+            if (listed != null) {
+                changes.add(deletion(entry.getValue(), listed));
+            }
+        }
+        for (String rule : this.rules.values()) {
+            if (!current.contains(rule)) {
+                changes.add(rule);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Identify a rule by table, chain and canonical spec
+     * @param rule rule with our usual syntax
+     * @return key, or null if the rule can't be parsed
+     */
+    public static String key(final String rule) {
+        List<String> tokens = IptablesSnapshot.tokenize(IptablesRestore.stripTable(rule));
+        if (tokens.size() < 2) return null;
+        int from = 2;
+        if (from < tokens.size() && tokens.get(from).matches("\\d+")) from++;
+        return String.format("%s %s %s",
+                IptablesRestore.getTable(rule), tokens.get(1),
+                IptablesSnapshot.canonical(tokens.subList(from, tokens.size())));
+    }
+
+    /**
+     * Build the deletion of a rule, using the spec listed by iptables
+     */
+    private static String deletion(final String rule, final String listed) {
+        List<String> tokens = IptablesSnapshot.tokenize(IptablesRestore.stripTable(rule));
+        String table = IptablesRestore.getTable(rule);
+        return String.format("-t %s -D %s %s", table, tokens.get(1), listed);
+    }
+}
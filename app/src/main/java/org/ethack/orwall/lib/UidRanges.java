@@ -0,0 +1,68 @@
+package org.ethack.orwall.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compress a set of UIDs into owner match arguments.
+ * Only strictly contiguous UIDs are merged: a hole may be given later to a newly installed
+ * application, which must not inherit anybody's policy.
+ */
+public final class UidRanges {
+
+    private final static Pattern OWNER = Pattern.compile("--uid-owner (\\d+)(?:-(\\d+))?");
+
+    private UidRanges() {
+    }
+
+    /**
+     * @param uids application UIDs
+     * @param merge true if "--uid-owner a-b" is supported
+     * @return "--uid-owner" arguments, e.g. "10042" or "10042-10045", in ascending order
+     */
+    public static List<String> compress(final Collection<Long> uids, final boolean merge) {
+        ArrayList<String> ranges = new ArrayList<>();
+        Long first = null;
+        Long last = null;
+        for (Long uid : new TreeSet<>(uids)) {
+            if (merge && last != null && uid == last + 1) {
+                last = uid;
+                continue;
+            }
+            if (first != null) ranges.add(format(first, last));
+            first = uid;
+            last = uid;
+        }
+        if (first != null) ranges.add(format(first, last));
+        return ranges;
+    }
+
+    /**
+     * @param owner "--uid-owner" argument
+     * @return true if it covers more than one UID
+     */
+    public static boolean isRange(final String owner) {
+        return owner.indexOf('-') > 0;
+    }
+
+    /**
+     * @param rule iptables rule
+     * @param uid application UID
+     * @return true if the "--uid-owner" match of the rule includes this UID
+     */
+    public static boolean covers(final String rule, final long uid) {
+        Matcher matcher = OWNER.matcher(rule);
+        if (!matcher.find()) return false;
+        long first = Long.parseLong(matcher.group(1));
+        long last = (matcher.group(2) == null ? first : Long.parseLong(matcher.group(2)));
+        return first <= uid && uid <= last;
+    }
+
+    private static String format(final long first, final long last) {
+        return (first == last ? String.valueOf(first) : first + "-" + last);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Splits shell output into lines, working on raw bytes with reusable buffers.
+ *
+ * The current line stays in an internal byte buffer; it is only decoded to chars on demand, into a
+ * reusable CharBuffer. Returned CharSequences are only valid until the next call.
+ */
+final class OutputReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+
+    private byte[] line = new byte[256];
+    private int length = 0;
+
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    OutputReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads next line, without its line terminator
+     *
+     * @return false on EOF
+     * @throws IOException
+     */
+    boolean readLine() throws IOException {
+        length = 0;
+        boolean gotData = false;
+        while (true) {
+            if (position >= limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    // last line may lack its terminator
+                    return gotData;
+                }
+            }
+            gotData = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position);
+
+            if (position < limit) {
+                // skip '\n'
+                position++;
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void append(int from, int to) {
+        int count = to - from;
+        if (count <= 0)
+            return;
+        if (length + count > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, length + count)];
+            System.arraycopy(line, 0, bigger, 0, length);
+            line = bigger;
+        }
+        System.arraycopy(buffer, from, line, length, count);
+        length += count;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Finds a marker in current line
+     *
+     * @param marker
+     * @return position of the marker, or -1
+     */
+    int indexOf(byte[] marker) {
+        outer:
+        for (int i = 0; i <= length - marker.length; i++) {
+            for (int j = 0; j < marker.length; j++) {
+                if (line[i + j] != marker[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if current line is exactly the given ASCII text
+     */
+    boolean equalsAscii(String text) {
+        if (text.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (line[i] != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the space-separated integers following a position, as in "TOKEN 12 0"
+     *
+     * @param from position to start from
+     * @param values receives parsed values
+     * @return number of values parsed
+     */
+    int parseInts(int from, int[] values) {
+        int count = 0;
+        int i = from;
+        while (count < values.length) {
+            while (i < length && line[i] == ' ')
+                i++;
+            if (i >= length)
+                break;
+
+            boolean negative = false;
+            if (line[i] == '-') {
+                negative = true;
+                i++;
+            }
+            int start = i;
+            int value = 0;
+            while (i < length && line[i] >= '0' && line[i] <= '9') {
+                value = value * 10 + (line[i] - '0');
+                i++;
+            }
+            if (i == start)
+                break;
+            values[count++] = (negative ? -value : value);
+        }
+        return count;
+    }
+
+    /**
+     * Decodes part of current line
+     *
+     * @param from
+     * @param to
+     * @return chars, valid until the next call
+     */
+    CharSequence chars(int from, int to) {
+        int count = to - from;
+        if (chars.capacity() < count) {
+            chars = CharBuffer.allocate(Math.max(chars.capacity() * 2, count));
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(line, from, count), chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * Decodes current line as a new String
+     */
+    String string() {
+        return chars(0, length).toString();
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+}
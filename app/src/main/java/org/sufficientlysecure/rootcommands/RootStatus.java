@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Cached root access state.
+ *
+ * get() answers right away from the last known state, without ever starting su. The state is
+ * checked in background by refresh(), through the shared root shell (reused if it's alive), and
+ * listeners are notified on the main thread whenever it changes.
+ *
+ * Only a grant is trusted from cache: a denial may come from a dismissed su prompt, and a failed
+ * check (timeout...) leaves the state unknown, so both are checked again on next occasion.
+ */
+public final class RootStatus {
+    public static final int UNKNOWN = 0;
+    public static final int GRANTED = 1;
+    public static final int DENIED = 2;
+
+    public interface OnRootStatusChangedListener {
+        void onRootStatusChanged(int status);
+    }
+
+    private static int status = UNKNOWN;
+    private static boolean refreshing = false;
+    private static final List<OnRootStatusChangedListener> listeners = new ArrayList<OnRootStatusChangedListener>();
+    private static Handler handler = null;
+
+    private RootStatus() {
+    }
+
+    /**
+     * Last known root access state, never blocks
+     *
+     * @return UNKNOWN, GRANTED or DENIED
+     */
+    public static synchronized int get() {
+        return status;
+    }
+
+    public static synchronized boolean isGranted() {
+        return status == GRANTED;
+    }
+
+    /**
+     * Get root access state, checking it synchronously unless it is known to be granted. Must not
+     * be called from the UI thread.
+     *
+     * @return true if root access is given
+     */
+    public static boolean check() {
+        synchronized (RootStatus.class) {
+            if (status == GRANTED) {
+                return true;
+            }
+        }
+        return update(probe()) == GRANTED;
+    }
+
+    /**
+     * Check root access again, in background. Concurrent refreshes are coalesced.
+     */
+    public static void refresh() {
+        synchronized (RootStatus.class) {
+            if (refreshing) {
+                return;
+            }
+            refreshing = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int result = probe();
+                synchronized (RootStatus.class) {
+                    refreshing = false;
+                }
+                update(result);
+            }
+        }, "RootStatus");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Forget known state (e.g. after root access was revoked), and check it again in background
+     */
+    public static void invalidate() {
+        synchronized (RootStatus.class) {
+            status = UNKNOWN;
+        }
+        refresh();
+    }
+
+    /**
+     * Register a listener, called on the main thread when the state changes
+     *
+     * @param listener
+     */
+    public static synchronized void addListener(OnRootStatusChangedListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public static synchronized void removeListener(OnRootStatusChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private static int probe() {
+        Shell shell = null;
+        try {
+            shell = SharedShell.acquire();
+            Toolbox tb = new Toolbox(shell);
+            return (tb.isRootAccessGiven() ? GRANTED : DENIED);
+        } catch (RootAccessDeniedException e) {
+            Log.e(RootCommands.TAG, "Root access denied", e);
+            return DENIED;
+        } catch (Exception e) {
+            // timeout, shell died...: we just don't know
+            Log.e(RootCommands.TAG, "Problem while checking for root access!", e);
+            return UNKNOWN;
+        } finally {
+            if (shell != null) {
+                SharedShell.release(shell);
+            }
+        }
+    }
+
+    private static int update(final int result) {
+        final List<OnRootStatusChangedListener> notified;
+        synchronized (RootStatus.class) {
+            if (status == result) {
+                return result;
+            }
+            status = result;
+            notified = new ArrayList<OnRootStatusChangedListener>(listeners);
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnRootStatusChangedListener listener : notified) {
+                    listener.onRootStatusChanged(result);
+                }
+            }
+        });
+        return result;
+    }
+}
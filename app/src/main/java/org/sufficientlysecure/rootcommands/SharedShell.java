@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.sufficientlysecure.rootcommands.util.Log;
+
+/**
+ * Process-wide root shell, shared by every caller instead of starting a new su session each time.
+ *
+ * Callers acquire() the shell before using it and release() it afterwards. Once nobody holds it
+ * anymore, the shell is kept open for an idle timeout, then closed. A shell which died in the
+ * meantime (timeout, su killed...) is transparently started again on next acquire(); holders of
+ * the dead shell don't count against the new one.
+ */
+public final class SharedShell {
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static Shell shell = null;
+    private static int references = 0;
+    private static int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private static Timer timer = null;
+    private static TimerTask closeTask = null;
+    private static Starter starter = new Starter() {
+        @Override
+        public Shell start() throws IOException {
+            return Shell.startRootShell();
+        }
+    };
+
+    /**
+     * Starts the shared shell, a root shell unless replaced for tests
+     */
+    interface Starter {
+        Shell start() throws IOException;
+    }
+
+    private SharedShell() {
+    }
+
+    /**
+     * Get the shared root shell, starting it if needed
+     *
+     * @return a running root shell
+     * @throws IOException
+     */
+    public static synchronized Shell acquire() throws IOException {
+        cancelClose();
+
+        if (shell == null || !shell.isAlive()) {
+            Log.d(RootCommands.TAG, "Starting shared root shell");
+            shell = starter.start();
+            // references were on the dead shell: their release() is ignored
+            references = 0;
+            // su let us in: a cached denial is outdated
+            if (!RootStatus.isGranted()) {
+                RootStatus.invalidate();
+            }
+        }
+        references++;
+        return shell;
+    }
+
+    /**
+     * Give back the shared shell. It is closed once unused for the idle timeout.
+     *
+     * @param released shell returned by acquire()
+     */
+    public static synchronized void release(Shell released) {
+        if (released != shell) {
+            // shell got respawned in the meantime, this one is already dead
+            return;
+        }
+        if (references > 0) {
+            references--;
+        }
+        if (references == 0) {
+            scheduleClose();
+        }
+    }
+
+    /**
+     * Checks if the shared shell is currently running, without starting it
+     *
+     * @return true if a live shell is available
+     */
+    public static synchronized boolean isAlive() {
+        return (shell != null && shell.isAlive());
+    }
+
+    /**
+     * Set how long an unused shell is kept open
+     *
+     * @param timeout milliseconds
+     */
+    public static synchronized void setIdleTimeout(int timeout) {
+        idleTimeout = timeout;
+    }
+
+    /**
+     * Close the shared shell right now, whoever holds it
+     */
+    public static synchronized void close() {
+        cancelClose();
+        references = 0;
+        if (shell != null) {
+            try {
+                shell.close();
+            } catch (IOException e) {
+                Log.e(RootCommands.TAG, "Unable to close shared shell", e);
+            }
+            shell = null;
+        }
+    }
+
+    static synchronized void setStarter(Starter newStarter) {
+        starter = newStarter;
+    }
+
+    static synchronized int getReferences() {
+        return references;
+    }
+
+    private static void scheduleClose() {
+        if (timer == null) {
+            timer = new Timer("Shared Shell", true);
+        }
+        closeTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (SharedShell.class) {
+                    if (closeTask == this && references == 0) {
+                        Log.d(RootCommands.TAG, "Closing idle shared root shell");
+                        close();
+                    }
+                }
+            }
+        };
+        timer.schedule(closeTask, idleTimeout);
+    }
+
+    private static void cancelClose() {
+        if (closeTask != null) {
+            closeTask.cancel();
+            closeTask = null;
+        }
+    }
+}
@@ -17,28 +17,48 @@
 
 package org.sufficientlysecure.rootcommands;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandGroup;
 import org.sufficientlysecure.rootcommands.util.Log;
 import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
 import org.sufficientlysecure.rootcommands.util.Utils;
 
 public class Shell implements Closeable {
     private final Process shellProcess;
-    private final BufferedReader stdOutErr;
+    private final OutputReader stdOutErr;
     private final DataOutputStream outputStream;
-    private final List<Command> commands = new ArrayList<Command>();
-    private boolean close = false;
+    // commands waiting to be written, and commands written but still waiting for their exit code
+    private final ArrayDeque<Command> pending = new ArrayDeque<Command>();
+    private final ArrayDeque<Command> running = new ArrayDeque<Command>();
+    // guards both queues
+    private final Object commands = new Object();
+    private int nextId = 0;
+    private volatile boolean close = false;
+    // last time the shell printed anything, and time the head of the running queue was abandoned
+    // without any output since (0 if it wasn't)
+    private volatile long lastOutput = System.currentTimeMillis();
+    private long stalledSince = 0;
+
+    /**
+     * add() blocks once that many commands are waiting to be written
+     */
+    public static final int MAX_PENDING = 256;
+    /**
+     * the writer stops once that many commands are waiting for their output
+     */
+    public static final int MAX_IN_FLIGHT = 32;
 
     private static final String LD_LIBRARY_PATH = System.getenv("LD_LIBRARY_PATH");
     private static final String token = "F*D^W@#FGF";
+    private static final byte[] tokenBytes = token.getBytes();
 
     /**
      * Start root shell
@@ -135,22 +155,22 @@ public class Shell implements Closeable {
         shellProcess = Utils.runWithEnv(shell, customEnv, baseDirectory);
 
         // StdErr is redirected to StdOut, defined in Command.getCommand()
-        stdOutErr = new BufferedReader(new InputStreamReader(shellProcess.getInputStream()));
-        outputStream = new DataOutputStream(shellProcess.getOutputStream());
+        stdOutErr = new OutputReader(shellProcess.getInputStream());
+        outputStream = new DataOutputStream(new BufferedOutputStream(shellProcess.getOutputStream()));
 
         outputStream.write("echo Started\n".getBytes());
         outputStream.flush();
 
         while (true) {
-            String line = stdOutErr.readLine();
-            if (line == null)
+            if (!stdOutErr.readLine())
                 throw new RootAccessDeniedException(
                         "stdout line is null! Access was denied or this executeable is not a shell!");
-            if ("".equals(line))
+            if (stdOutErr.length() == 0)
                 continue;
-            if ("Started".equals(line))
+            if (stdOutErr.equalsAscii("Started"))
                 break;
 
+            String line = stdOutErr.string();
             destroyShellProcess();
             throw new IOException("Unable to start shell, unexpected output \"" + line + "\"");
         }
@@ -203,37 +223,45 @@ public class Shell implements Closeable {
 
     /**
      * Writes queued commands one after another into the opened shell. After an execution a token is
-     * written to seperate command output on read
+     * written to seperate command output on read. Written commands move to the running queue, and
+     * the writer waits once MAX_IN_FLIGHT of them did not get their output yet.
      * 
      * @throws IOException
      */
     private void writeCommands() throws IOException {
         try {
-            int commandIndex = 0;
             while (true) {
                 DataOutputStream out;
+                Command next;
+                boolean flush;
                 synchronized (commands) {
-                    while (!close && commandIndex >= commands.size()) {
+                    while (!close && (pending.isEmpty() || running.size() >= MAX_IN_FLIGHT)) {
                         commands.wait();
                     }
                     out = this.outputStream;
+                    next = pending.pollFirst();
+                    if (next != null) {
+                        running.addLast(next);
+                        // room for producers blocked in add()
+                        commands.notifyAll();
+                    }
+                    // pipelined commands are sent together, unless we have to wait for the reader
+                    flush = (pending.isEmpty() || running.size() >= MAX_IN_FLIGHT);
                 }
-                if (commandIndex < commands.size()) {
-                    Command next = commands.get(commandIndex);
+                if (next != null) {
                     next.writeCommand(out);
-                    String line = "\necho " + token + " " + commandIndex + " $?\n";
+                    String line = "\necho " + token + " " + next.getId() + " $?\n";
                     out.write(line.getBytes());
-                    out.flush();
-                    commandIndex++;
-                } else if (close) {
+                    if (flush) {
+                        out.flush();
+                    }
+                } else {
                     out.write("\nexit 0\n".getBytes());
                     out.flush();
                     Log.d(RootCommands.TAG, "Closing shell");
                     shellProcess.waitFor();
                     out.close();
                     return;
-                } else {
-                    Thread.sleep(50);
                 }
             }
         } catch (InterruptedException e) {
@@ -242,88 +270,179 @@ public class Shell implements Closeable {
     }
 
     /**
-     * Reads output line by line, seperated by token written after every command
+     * Reads output line by line, seperated by token written after every command. Finished commands
+     * are released from the running queue.
+     * 
+     * Lines are handled as raw bytes: the token is found without decoding nor splitting the line,
+     * and output is only decoded for commands which want it.
      * 
      * @throws IOException
      * @throws InterruptedException
      */
     private void readOutput() throws IOException, InterruptedException {
         Command command = null;
+        boolean wantsOutput = false;
+        int[] fields = new int[2];
 
-        // index of current command
-        int commandIndex = 0;
-        while (true) {
-            String lineStdOut = stdOutErr.readLine();
-
-            // terminate on EOF
-            if (lineStdOut == null)
-                break;
-
+        // terminate on EOF
+        while (stdOutErr.readLine()) {
+            lastOutput = System.currentTimeMillis();
             if (command == null) {
+                synchronized (commands) {
+                    command = running.peekFirst();
 
-                // break on close after last command
-                if (commandIndex >= commands.size()) {
-                    if (close)
+                    // break on close after last command
+                    if (command == null && close && pending.isEmpty())
                         break;
-                    continue;
                 }
-
-                // get current command
-                command = commands.get(commandIndex);
+                if (command == null)
+                    continue;
+                // abandoned commands still go through the queue, their output is just discarded
+                wantsOutput = command.wantsOutput() && !command.isDone();
             }
 
-            int pos = lineStdOut.indexOf(token);
-            if (pos > 0) {
-                command.processOutput(lineStdOut.substring(0, pos));
-            }
+            int length = stdOutErr.length();
+            int pos = stdOutErr.indexOf(tokenBytes);
             if (pos >= 0) {
-                lineStdOut = lineStdOut.substring(pos);
-                String fields[] = lineStdOut.split(" ");
-                int id = Integer.parseInt(fields[1]);
-                if (id == commandIndex) {
-                    command.setExitCode(Integer.parseInt(fields[2]));
+                if (stdOutErr.parseInts(pos + tokenBytes.length, fields) == 2
+                        && fields[0] == command.getId()) {
+                    if (pos > 0 && wantsOutput) {
+                        command.processOutput(stdOutErr.chars(0, pos));
+                    }
+                    synchronized (commands) {
+                        running.pollFirst();
+                        stalledSince = 0;
+                        commands.notifyAll();
+                    }
+                    if (!command.isDone()) {
+                        command.setExitCode(fields[1]);
+                    }
 
                     // go to next command
-                    commandIndex++;
                     command = null;
                     continue;
                 }
             }
-            command.processOutput(lineStdOut);
+            if (wantsOutput) {
+                command.processOutput(stdOutErr.chars(0, length));
+            }
         }
         Log.d(RootCommands.TAG, "Read all output");
         shellProcess.waitFor();
         stdOutErr.close();
         destroyShellProcess();
 
-        while (commandIndex < commands.size()) {
-            if (command == null) {
-                command = commands.get(commandIndex);
-            }
-            command.terminated("Unexpected Termination!");
-            commandIndex++;
-            command = null;
+        List<Command> left = new ArrayList<Command>();
+        synchronized (commands) {
+            close = true;
+            left.addAll(running);
+            left.addAll(pending);
+            running.clear();
+            pending.clear();
+            commands.notifyAll();
+        }
+        for (Command unfinished : left) {
+            unfinished.terminated("Unexpected Termination!");
         }
     }
 
     /**
-     * Add command to shell queue
+     * Add command to shell queue. Blocks while MAX_PENDING commands are already waiting to be
+     * written.
      * 
      * @param command
      * @return
      * @throws IOException
      */
     public Command add(Command command) throws IOException {
+        synchronized (commands) {
+            enqueue(command);
+        }
+
+        return command;
+    }
+
+    /**
+     * Must be called with the commands lock held
+     */
+    private void enqueue(Command command) throws IOException {
+        while (!close && pending.size() >= MAX_PENDING) {
+            try {
+                commands.wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for room in the shell queue");
+            }
+        }
         if (close)
             throw new IOException("Unable to add commands to a closed shell");
+        pending.addLast(command);
+        // set shell on the command object, to know where the command is running on
+        command.addedToShell(this, nextId++);
+        commands.notifyAll();
+    }
+
+    /**
+     * Add several commands to shell queue at once, without waiting for any of them. They are written
+     * back-to-back into the shell, use the returned group (or each command, as a Future) to collect
+     * their exit codes.
+     * 
+     * @param commands
+     * @return
+     * @throws IOException
+     */
+    public CommandGroup addAll(List<Command> commands) throws IOException {
+        synchronized (this.commands) {
+            for (Command command : commands) {
+                enqueue(command);
+            }
+        }
+
+        return new CommandGroup(commands);
+    }
+
+    /**
+     * Forget a command whose caller gave up on it, e.g. after a timeout, without disturbing other
+     * commands. A command not written yet is dropped; a running one stays in the queue until its
+     * exit code comes, as output is matched in order, but its result is discarded.
+     * 
+     * The shell is only killed if it is wedged: a command times out while an earlier abandoned one
+     * still blocks the queue, and nothing was printed for a whole timeout since. Commands still
+     * queued then finish with exit code -1, and SharedShell starts a new shell on next use.
+     * 
+     * @param command
+     * @param timedOut true if the command waited for its whole timeout
+     */
+    public void abandon(Command command, boolean timedOut) {
+        boolean wedged = false;
         synchronized (commands) {
-            commands.add(command);
-            // set shell on the command object, to know where the command is running on
-            command.addedToShell(this, (commands.size() - 1));
-            commands.notifyAll();
+            if (pending.remove(command)) {
+                commands.notifyAll();
+            }
+            Command head = running.peekFirst();
+            if (head == command) {
+                if (stalledSince == 0) {
+                    stalledSince = System.currentTimeMillis();
+                }
+            } else if (timedOut && head != null && stalledSince != 0 && lastOutput < stalledSince
+                    && System.currentTimeMillis() - stalledSince >= command.getTimeout()) {
+                wedged = true;
+            }
         }
+        if (wedged) {
+            Log.e(RootCommands.TAG, "Shell stopped answering, killing it");
+            kill();
+        }
+    }
 
-        return command;
+    /**
+     * Stop the shell process right now. Unfinished commands get exit code -1.
+     */
+    private void kill() {
+        synchronized (commands) {
+            this.close = true;
+            commands.notifyAll();
+        }
+        destroyShellProcess();
     }
 
     /**
@@ -339,12 +458,30 @@ public class Shell implements Closeable {
     }
 
     /**
-     * Returns number of queued commands
+     * Checks if the shell process is still running and accepts commands
+     * 
+     * @return
+     */
+    public boolean isAlive() {
+        if (close)
+            return false;
+        try {
+            shellProcess.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns number of commands not finished yet
      * 
      * @return
      */
     public int getCommandsSize() {
-        return commands.size();
+        synchronized (commands) {
+            return pending.size() + running.size();
+        }
     }
 
 }
\ No newline at end of file
@@ -19,6 +19,8 @@ package org.sufficientlysecure.rootcommands.command;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.sufficientlysecure.rootcommands.RootCommands;
@@ -26,7 +28,7 @@ import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
 import org.sufficientlysecure.rootcommands.util.Log;
 
-public abstract class Command {
+public abstract class Command implements Future<Integer> {
     final String command[];
     boolean finished = false;
     boolean brokenBusyboxDetected = false;
@@ -34,6 +36,14 @@ public abstract class Command {
     int id;
     int timeout = RootCommands.DEFAULT_TIMEOUT;
     Shell shell = null;
+    OnFinishedListener listener = null;
+
+    /**
+     * Called from the shell output thread once a command got its exit code
+     */
+    public interface OnFinishedListener {
+        void onFinished(Command command, int exitCode);
+    }
 
     public Command(String... command) {
         this.command = command;
@@ -55,6 +65,10 @@ public abstract class Command {
         this.id = id;
     }
 
+    public int getId() {
+        return id;
+    }
+
     /**
      * Gets command string executed on the shell
      * 
@@ -75,8 +89,20 @@ public abstract class Command {
         out.write(getCommand().getBytes());
     }
 
-    public void processOutput(String line) {
-        Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+    /**
+     * Whether output lines should be decoded and passed to output(). Commands only interested in
+     * their exit code override this to skip any per-line work in the shell reader.
+     * 
+     * @return
+     */
+    public boolean wantsOutput() {
+        return true;
+    }
+
+    public void processOutput(CharSequence line) {
+        if (RootCommands.DEBUG) {
+            Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+        }
 
         /*
          * Try to detect broken toolbox/busybox binaries (see
@@ -85,7 +111,7 @@ public abstract class Command {
          * It is giving "Value too large for defined data type" on certain file operations (e.g. ls
          * and chown) in certain directories (e.g. /data/data)
          */
-        if (line.contains("Value too large for defined data type")) {
+        if (contains(line, BROKEN_BUSYBOX)) {
             Log.e(RootCommands.TAG, "Busybox is broken with high probability due to line: " + line);
             brokenBusyboxDetected = true;
         }
@@ -94,6 +120,31 @@ public abstract class Command {
         output(id, line);
     }
 
+    private static final String BROKEN_BUSYBOX = "Value too large for defined data type";
+
+    private static boolean contains(CharSequence line, String text) {
+        int last = line.length() - text.length();
+        outer:
+        for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < text.length(); j++) {
+                if (line.charAt(i + j) != text.charAt(j))
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Output line, only valid during the call. Override to avoid creating a String per line.
+     * 
+     * @param id
+     * @param line
+     */
+    public void output(int id, CharSequence line) {
+        output(id, line.toString());
+    }
+
     public abstract void output(int id, String line);
 
     public void processAfterExecution(int exitCode) {
@@ -109,16 +160,94 @@ public abstract class Command {
     }
 
     public void setExitCode(int code) {
+        OnFinishedListener finishedListener;
         synchronized (this) {
             exitCode = code;
             finished = true;
             commandFinished(id);
             this.notifyAll();
+            finishedListener = listener;
+        }
+        if (finishedListener != null) {
+            finishedListener.onFinished(this, code);
+        }
+    }
+
+    /**
+     * Set a listener called once this command finished. If it already finished, the listener is
+     * called right away.
+     * 
+     * @param listener
+     */
+    public void setOnFinishedListener(OnFinishedListener listener) {
+        boolean alreadyFinished;
+        synchronized (this) {
+            this.listener = listener;
+            alreadyFinished = finished;
+        }
+        if (alreadyFinished && listener != null) {
+            listener.onFinished(this, exitCode);
+        }
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Commands can't be cancelled once queued in a shell
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (this) {
+            return finished;
         }
     }
 
     /**
-     * Close the shell
+     * Waits for the exit code, without any timeout nor output post-processing
+     */
+    @Override
+    public Integer get() throws InterruptedException {
+        synchronized (this) {
+            while (!finished) {
+                this.wait();
+            }
+            return exitCode;
+        }
+    }
+
+    /**
+     * Waits for the exit code. Unlike waitForFinish(), reaching the timeout doesn't terminate the
+     * shell.
+     */
+    @Override
+    public Integer get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (this) {
+            while (!finished) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new TimeoutException("Timeout has occurred.");
+                }
+                this.wait(remaining);
+            }
+            return exitCode;
+        }
+    }
+
+    /**
+     * Close the shell, and every other command queued or running in it
      * 
      * @param reason
      */
@@ -136,6 +265,35 @@ public abstract class Command {
         Log.d(RootCommands.TAG, "Command " + id + " did not finish, because of " + reason);
     }
 
+    /**
+     * Give up on this command only: it finishes with exit code -1 right away, and the shell drops
+     * it, or discards its result once it comes. Other commands of the shell are left alone.
+     * 
+     * @param reason
+     * @return false if the command finished in the meantime
+     */
+    public boolean abandon(String reason) {
+        return abandon(reason, false);
+    }
+
+    private boolean abandon(String reason, boolean timedOut) {
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            terminated(reason);
+        }
+        // not holding our lock: the shell locks its queues first
+        if (shell != null) {
+            shell.abandon(this, timedOut);
+        }
+        return true;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
     /**
      * Waits for this command to finish and forwards exitCode into afterExecution method
      * 
@@ -153,18 +311,27 @@ public abstract class Command {
                 }
 
                 if (!finished) {
-                    finished = true;
-                    terminate("Timeout");
-                    throw new TimeoutException("Timeout has occurred.");
+                    break;
                 }
             }
 
-            if (brokenBusyboxDetected) {
-                throw new BrokenBusyboxException();
+            if (finished) {
+                if (brokenBusyboxDetected) {
+                    throw new BrokenBusyboxException();
+                }
+
+                processAfterExecution(exitCode);
+                return;
             }
+        }
 
-            processAfterExecution(exitCode);
+        // the shell is shared: only this command is given up
+        if (!abandon("Timeout", true)) {
+            // finished right after the timeout
+            waitForFinish();
+            return;
         }
+        throw new TimeoutException("Timeout has occurred.");
     }
 
 }
\ No newline at end of file
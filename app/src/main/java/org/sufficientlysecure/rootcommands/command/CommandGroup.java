@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+
+/**
+ * Commands submitted together to a shell, see Shell.addAll().
+ * They are written back-to-back into the shell, and their exit codes collected at the end.
+ */
+public class CommandGroup {
+    private final List<Command> commands;
+
+    public CommandGroup(List<Command> commands) {
+        this.commands = new ArrayList<Command>(commands);
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Checks if every command of the group finished
+     *
+     * @return
+     */
+    public boolean isDone() {
+        for (Command command : commands) {
+            if (!command.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for all commands to finish, in submission order. If one of them times out, the
+     * following ones are abandoned as well.
+     *
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public void waitForFinish() throws TimeoutException, BrokenBusyboxException {
+        for (int i = 0; i < commands.size(); i++) {
+            try {
+                commands.get(i).waitForFinish();
+            } catch (TimeoutException e) {
+                for (int j = i + 1; j < commands.size(); j++) {
+                    commands.get(j).abandon("Timeout of command " + commands.get(i).getId());
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Get commands which did not exit with 0. Only meaningful once finished.
+     *
+     * @return
+     */
+    public List<Command> getFailed() {
+        List<Command> failed = new ArrayList<Command>();
+        for (Command command : commands) {
+            if (command.getExitCode() != 0) {
+                failed.add(command);
+            }
+        }
+        return failed;
+    }
+
+}
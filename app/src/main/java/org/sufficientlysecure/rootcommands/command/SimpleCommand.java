@@ -23,6 +23,11 @@ public class SimpleCommand extends Command {
         super(command);
     }
 
+    @Override
+    public void output(int id, CharSequence line) {
+        sb.append(line).append('\n');
+    }
+
     @Override
     public void output(int id, String line) {
         sb.append(line).append('\n');
@@ -36,8 +41,4 @@ public class SimpleCommand extends Command {
         return sb.toString();
     }
 
-    public int getExitCode() {
-        return exitCode;
-    }
-
 }
\ No newline at end of file
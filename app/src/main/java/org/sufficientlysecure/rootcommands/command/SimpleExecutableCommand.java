@@ -38,8 +38,4 @@ public class SimpleExecutableCommand extends ExecutableCommand {
         return sb.toString();
     }
 
-    public int getExitCode() {
-        return exitCode;
-    }
-
 }
\ No newline at end of file
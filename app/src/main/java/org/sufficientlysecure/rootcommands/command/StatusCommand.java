@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+/**
+ * Command whose output is discarded, only its exit code matters.
+ * The shell reader does not decode its output at all.
+ */
+public class StatusCommand extends Command {
+
+    public StatusCommand(String... command) {
+        super(command);
+    }
+
+    @Override
+    public boolean wantsOutput() {
+        return false;
+    }
+
+    @Override
+    public void output(int id, String line) {
+    }
+
+    @Override
+    public void afterExecution(int id, int exitCode) {
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.ethack.orwall.database;
+
+import org.ethack.orwall.lib.AppRule;
+import org.ethack.orwall.lib.FirewallJournal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrade statements, run on an in-memory database through the JDBC driver
+ */
+public class natDBHelperTest {
+    private final static String CREATE_V2 =
+            "CREATE TABLE rules (appUID INTEGER PRIMARY KEY, appName TEXT NOT NULL, " +
+                    "onionType TEXT, localhost INTEGER, localnetwork INTEGER)";
+
+    private Connection db;
+
+    @Before
+    public void setUp() throws SQLException {
+        db = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+
+    private void exec(final String sql) throws SQLException {
+        Statement statement = db.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void upgrade(final int from, final int to) throws SQLException {
+        for (int version = from; version < to; version++) {
+            for (String sql : natDBHelper.getUpgrade(version)) {
+                exec(sql);
+            }
+        }
+    }
+
+    private int getPolicy(final long uid) throws SQLException {
+        PreparedStatement statement = db.prepareStatement("SELECT policy FROM rules WHERE appUID=?");
+        try {
+            statement.setLong(1, uid);
+            ResultSet result = statement.executeQuery();
+            assertTrue("no rule for " + uid, result.next());
+            return result.getInt(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private boolean hasTable(final String name) throws SQLException {
+        PreparedStatement statement = db.prepareStatement("SELECT name FROM sqlite_master WHERE type='table' AND name=?");
+        try {
+            statement.setString(1, name);
+            return statement.executeQuery().next();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Test
+    public void upgradeV2PacksPolicy() throws SQLException {
+        exec(CREATE_V2);
+        exec("INSERT INTO rules VALUES (10001, 'tor.app', 'Tor', 0, 0)");
+        exec("INSERT INTO rules VALUES (10002, 'bypass.app', 'Bypass', 1, 0)");
+        exec("INSERT INTO rules VALUES (10003, 'local.app', 'None', 1, 1)");
+        exec("INSERT INTO rules VALUES (10004, 'null.app', NULL, NULL, 1)");
+
+        upgrade(2, 3);
+
+        assertEquals(AppRule.PROXY_TOR, getPolicy(10001));
+        assertEquals(AppRule.PROXY_BYPASS | AppRule.FLAG_LOCALHOST, getPolicy(10002));
+        assertEquals(AppRule.PROXY_NONE | AppRule.FLAG_LOCALHOST | AppRule.FLAG_LOCALNETWORK, getPolicy(10003));
+        assertEquals(AppRule.FLAG_LOCALNETWORK, getPolicy(10004));
+        assertFalse(hasTable("rules_backup"));
+    }
+
+    @Test
+    public void upgradeV2KeepsNames() throws SQLException {
+        exec(CREATE_V2);
+        exec("INSERT INTO rules VALUES (10001, 'tor.app', 'Tor', 0, 0)");
+
+        upgrade(2, 3);
+
+        ResultSet result = db.createStatement().executeQuery("SELECT appName FROM rules WHERE appUID=10001");
+        assertTrue(result.next());
+        assertEquals("tor.app", result.getString(1));
+    }
+
+    @Test
+    public void upgradeV3AddsJournal() throws SQLException {
+        exec(CREATE_V2);
+        exec("INSERT INTO rules VALUES (10001, 'tor.app', 'Tor', 0, 0)");
+        upgrade(2, 4);
+
+        assertTrue(hasTable("journal"));
+        assertEquals(AppRule.PROXY_TOR, getPolicy(10001));
+
+        exec("INSERT INTO journal (op, uid, allow, policy, args, state, ts) VALUES (5, NULL, 1, NULL, NULL, 0, 1)");
+        exec("INSERT INTO journal (op, uid, allow, policy, args, state, ts) VALUES (2, 10001, 0, 1, 'tor.app', 1, 2)");
+        PreparedStatement statement = db.prepareStatement(natDBHelper.SELECT_JOURNAL_STATE);
+        statement.setInt(1, FirewallJournal.STATE_PENDING);
+        ResultSet result = statement.executeQuery();
+        assertTrue(result.next());
+        assertEquals(1, result.getLong(1));
+        assertEquals(5, result.getInt(2));
+        assertFalse(result.next());
+        statement.close();
+    }
+
+    @Test
+    public void upgradeFromCurrentVersionDoesNothing() {
+        assertTrue(natDBHelper.getUpgrade(4).isEmpty());
+    }
+}
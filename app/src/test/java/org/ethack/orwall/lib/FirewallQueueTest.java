@@ -0,0 +1,192 @@
+package org.ethack.orwall.lib;
+
+import org.ethack.orwall.lib.FirewallExecutor.Op;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FirewallQueueTest {
+    private FirewallQueue queue;
+    private long nextSeq;
+    private List<String> done;
+
+    @Before
+    public void setUp() {
+        queue = new FirewallQueue();
+        nextSeq = 1;
+        done = new ArrayList<>();
+    }
+
+    private Op op(final int type) {
+        Op op = new Op(type);
+        op.seqs.add(nextSeq++);
+        return op;
+    }
+
+    private Op toggle(final int type, final boolean allow) {
+        Op op = op(type);
+        op.allow = allow;
+        return op;
+    }
+
+    private Op reconcile(final Long uid) {
+        Op op = op(FirewallExecutor.OP_RECONCILE);
+        op.uid = uid;
+        return op;
+    }
+
+    private Op tracked(final Op op, final String name) {
+        op.done = new Runnable() {
+            @Override
+            public void run() {
+                done.add(name);
+            }
+        };
+        return op;
+    }
+
+    private List<Integer> types(final List<Op> ops) {
+        ArrayList<Integer> types = new ArrayList<>();
+        for (Op op : ops) {
+            types.add(op.type);
+        }
+        return types;
+    }
+
+    @Test
+    public void oppositeTogglesCancelOut() {
+        queue.add(toggle(FirewallExecutor.OP_ADB, true));
+        List<Long> dropped = queue.add(toggle(FirewallExecutor.OP_ADB, false));
+
+        assertTrue(queue.isEmpty());
+        assertEquals(Arrays.asList(1L, 2L), dropped);
+        assertEquals(2, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void identicalToggleIsMerged() {
+        queue.add(toggle(FirewallExecutor.OP_SSH, true));
+        assertTrue(queue.add(toggle(FirewallExecutor.OP_SSH, true)).isEmpty());
+
+        List<Op> lane = queue.nextLane();
+        assertEquals(1, lane.size());
+        assertEquals(Arrays.asList(1L, 2L), lane.get(0).seqs);
+    }
+
+    @Test
+    public void togglesForDifferentAppsAreKept() {
+        Op sip1 = toggle(FirewallExecutor.OP_SIP, true);
+        sip1.uid = 10001L;
+        Op sip2 = toggle(FirewallExecutor.OP_SIP, false);
+        sip2.uid = 10002L;
+        queue.add(sip1);
+        queue.add(sip2);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void lastReconcileOfAnAppWins() {
+        queue.add(reconcile(10001L));
+        queue.add(reconcile(10002L));
+        Op last = reconcile(10001L);
+        queue.add(last);
+
+        List<Op> lane = queue.nextLane();
+        assertEquals(2, lane.size());
+        assertEquals(Long.valueOf(10002L), lane.get(0).uid);
+        assertSame(last, lane.get(1));
+        assertEquals(Arrays.asList(3L, 1L), last.seqs);
+    }
+
+    @Test
+    public void idempotentOpsDontMergeAcrossCriticalOnes() {
+        queue.add(op(FirewallExecutor.OP_LAN));
+        queue.add(op(FirewallExecutor.OP_PORTS));
+        queue.add(op(FirewallExecutor.OP_LAN));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void deactivateSupersedesEverything() {
+        queue.add(tracked(toggle(FirewallExecutor.OP_ADB, true), "adb"));
+        queue.add(tracked(op(FirewallExecutor.OP_BOOT), "boot"));
+        List<Long> dropped = queue.add(op(FirewallExecutor.OP_DEACTIVATE));
+
+        assertEquals(Arrays.asList(1L, 2L), dropped);
+        assertEquals(Arrays.asList("adb", "boot"), done);
+        assertEquals(Collections.singletonList(FirewallExecutor.OP_DEACTIVATE), types(queue.nextLane()));
+    }
+
+    @Test
+    public void reloadKeepsTetheringAndBrowser() {
+        queue.add(op(FirewallExecutor.OP_LAN));
+        queue.add(op(FirewallExecutor.OP_TETHER));
+        queue.add(toggle(FirewallExecutor.OP_BROWSER, true));
+        queue.add(tracked(toggle(FirewallExecutor.OP_ADB, true), "adb"));
+        List<Long> dropped = queue.add(op(FirewallExecutor.OP_RELOAD));
+
+        assertEquals(Arrays.asList(1L, 4L), dropped);
+        assertEquals(Collections.singletonList("adb"), done);
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void bootMergesWithPendingBoot() {
+        Op first = tracked(op(FirewallExecutor.OP_BOOT), "first");
+        queue.add(first);
+        queue.add(tracked(op(FirewallExecutor.OP_BOOT), "second"));
+
+        List<Op> lane = queue.nextLane();
+        assertEquals(Collections.singletonList(first), lane);
+        assertEquals(Arrays.asList(1L, 2L), first.seqs);
+        first.done.run();
+        assertEquals(Arrays.asList("first", "second"), done);
+    }
+
+    @Test
+    public void bootSupersedesLanAndFullReconcile() {
+        queue.add(tracked(op(FirewallExecutor.OP_LAN), "lan"));
+        queue.add(tracked(reconcile(null), "all"));
+        queue.add(tracked(reconcile(10001L), "app"));
+        List<Long> dropped = queue.add(op(FirewallExecutor.OP_BOOT));
+
+        assertEquals(Arrays.asList(2L, 1L), dropped);
+        assertEquals(Arrays.asList("all", "lan"), done);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void mostUrgentLaneFirst() {
+        Op background = reconcile(null);
+        background.priority = FirewallExecutor.PRIORITY_BACKGROUND;
+        queue.add(background);
+        queue.add(toggle(FirewallExecutor.OP_ADB, true));
+        queue.add(op(FirewallExecutor.OP_LAN));
+        queue.add(op(FirewallExecutor.OP_PORTS));
+
+        assertEquals(Collections.singletonList(FirewallExecutor.OP_PORTS), types(queue.nextLane()));
+        assertEquals(Arrays.asList(FirewallExecutor.OP_ADB, FirewallExecutor.OP_LAN), types(queue.nextLane()));
+        assertEquals(Collections.singletonList(FirewallExecutor.OP_RECONCILE), types(queue.nextLane()));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void mergedOpKeepsMostUrgentPriority() {
+        Op background = reconcile(null);
+        background.priority = FirewallExecutor.PRIORITY_BACKGROUND;
+        queue.add(background);
+        queue.add(reconcile(null));
+
+        List<Op> lane = queue.nextLane();
+        assertEquals(1, lane.size());
+        assertEquals(FirewallExecutor.PRIORITY_APPS, lane.get(0).priority);
+    }
+}
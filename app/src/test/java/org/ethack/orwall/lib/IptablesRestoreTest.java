@@ -0,0 +1,143 @@
+package org.ethack.orwall.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IptablesRestoreTest {
+    private final static String NAT_RULE = "-t nat -A ow_OUTPUT -d 127.0.0.1 -j RETURN";
+    private final static String NAT_CHAIN = "-t nat -N ow_TOR";
+    private final static String FILTER_RULE = "-A ow_OUTPUT -j ACCEPT";
+
+    private IptablesRestore restore;
+
+    @Before
+    public void setUp() {
+        restore = new IptablesRestore();
+        restore.add(FILTER_RULE);
+        restore.add(NAT_RULE);
+        restore.add(NAT_CHAIN);
+    }
+
+    @Test
+    public void getTable() {
+        assertEquals("nat", IptablesRestore.getTable(NAT_RULE));
+        assertEquals("filter", IptablesRestore.getTable(FILTER_RULE));
+        assertEquals("mangle", IptablesRestore.getTable("  -t mangle -F ow_OUTPUT"));
+    }
+
+    @Test
+    public void stripTable() {
+        assertEquals("-A ow_OUTPUT -d 127.0.0.1 -j RETURN", IptablesRestore.stripTable(NAT_RULE));
+        assertEquals(FILTER_RULE, IptablesRestore.stripTable(FILTER_RULE));
+        assertEquals("", IptablesRestore.stripTable("-t nat"));
+    }
+
+    @Test
+    public void renderGroupsByTableInCommitOrder() {
+        assertEquals(
+                "*nat\n" +
+                        "-A ow_OUTPUT -d 127.0.0.1 -j RETURN\n" +
+                        "-N ow_TOR\n" +
+                        "COMMIT\n" +
+                        "*filter\n" +
+                        "-A ow_OUTPUT -j ACCEPT\n" +
+                        "COMMIT\n",
+                restore.render());
+    }
+
+    @Test
+    public void renderInGivenTableOrder() {
+        IptablesRestore swap = new IptablesRestore(new String[]{"filter", "mangle", "nat"});
+        swap.add("-t nat -R OUTPUT 1 -j ow_OUTPUT_next");
+        swap.add("-R OUTPUT 2 -j ow_OUTPUT_next");
+        swap.add("-t raw -A PREROUTING -j ACCEPT");
+        assertEquals(
+                "*filter\n" +
+                        "-R OUTPUT 2 -j ow_OUTPUT_next\n" +
+                        "COMMIT\n" +
+                        "*nat\n" +
+                        "-R OUTPUT 1 -j ow_OUTPUT_next\n" +
+                        "COMMIT\n" +
+                        "*raw\n" +
+                        "-A PREROUTING -j ACCEPT\n" +
+                        "COMMIT\n",
+                swap.render());
+    }
+
+    @Test
+    public void renderEmpty() {
+        assertEquals("", new IptablesRestore().render());
+    }
+
+    @Test
+    public void parseFailedLine() {
+        assertEquals(12, IptablesRestore.parseFailedLine("iptables-restore: line 12 failed"));
+        assertEquals(7, IptablesRestore.parseFailedLine("iptables-restore v1.8.7 (nf_tables):\nError occurred at line: 7\n"));
+        assertEquals(-1, IptablesRestore.parseFailedLine("iptables-restore: unable to initialize table 'nat'"));
+        assertEquals(-1, IptablesRestore.parseFailedLine(null));
+    }
+
+    @Test
+    public void failInFirstTableKeepsFollowingRules() {
+        restore.render();
+        // line 2: first nat rule, nothing committed yet
+        assertEquals(NAT_RULE, restore.fail(2));
+        assertEquals(Arrays.asList(FILTER_RULE, NAT_CHAIN), restore.getRules());
+    }
+
+    @Test
+    public void failInLaterTableOnlyDropsFailingRule() {
+        restore.render();
+        // line 6: filter rule, after the nat COMMIT at line 4; nothing tells what was committed
+        assertTrue(restore.hasCommitBefore(6));
+        assertEquals(FILTER_RULE, restore.fail(6));
+        assertEquals(Arrays.asList(NAT_RULE, NAT_CHAIN), restore.getRules());
+    }
+
+    @Test
+    public void noCommitBeforeFirstTable() {
+        restore.render();
+        assertFalse(restore.hasCommitBefore(2));
+        assertFalse(restore.hasCommitBefore(4));
+    }
+
+    @Test
+    public void failRemovesRenderedDuplicate() {
+        IptablesRestore duplicates = new IptablesRestore();
+        duplicates.add(FILTER_RULE);
+        duplicates.add(NAT_RULE);
+        duplicates.add(FILTER_RULE);
+        duplicates.render();
+        // *nat, NAT_RULE, COMMIT, *filter, FILTER_RULE (first), FILTER_RULE (second)
+        assertEquals(FILTER_RULE, duplicates.fail(6));
+        assertEquals(Arrays.asList(FILTER_RULE, NAT_RULE), duplicates.getRules());
+    }
+
+    @Test
+    public void removeApplied() {
+        IptablesSnapshot current = new IptablesSnapshot();
+        current.parse("nat", "-P OUTPUT ACCEPT\n-N ow_OUTPUT\n-N ow_TOR\n-A ow_OUTPUT -d 127.0.0.1/32 -j RETURN\n");
+        current.parse("filter", "-P OUTPUT ACCEPT\n-N ow_OUTPUT\n");
+        assertEquals(2, restore.removeApplied(current));
+        assertEquals(Arrays.asList(FILTER_RULE), restore.getRules());
+    }
+
+    @Test
+    public void failOutsideOfRules() {
+        restore.render();
+        assertNull(restore.fail(-1));
+        assertNull(restore.fail(0));
+        assertNull(restore.fail(100));
+        assertEquals(3, restore.size());
+        // COMMIT line
+        assertNull(restore.fail(4));
+        assertEquals(3, restore.size());
+    }
+}
@@ -0,0 +1,140 @@
+package org.ethack.orwall.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IptablesSnapshotTest {
+    private final static String FILTER =
+            "-P INPUT ACCEPT\n" +
+            "-P FORWARD ACCEPT\n" +
+            "-P OUTPUT DROP\n" +
+            "-N ow_OUTPUT\n" +
+            "-N ow_LAN\n" +
+            "-A OUTPUT -j ow_OUTPUT\n" +
+            "-A ow_OUTPUT -d 127.0.0.1/32 -o lo -j RETURN\n" +
+            "-A ow_OUTPUT -p tcp -m tcp --dport 9040 -m comment --comment \"orWall tor\" -j ACCEPT\n" +
+            "-A ow_OUTPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT\n" +
+            "-A ow_OUTPUT -m owner --uid-owner 10001 -j REJECT --reject-with icmp-port-unreachable\n";
+
+    private IptablesSnapshot snapshot;
+
+    @Before
+    public void setUp() {
+        snapshot = new IptablesSnapshot();
+        snapshot.parse("filter", FILTER);
+    }
+
+    @Test
+    public void parse() {
+        assertTrue(snapshot.hasTable("filter"));
+        assertFalse(snapshot.hasTable("nat"));
+        assertTrue(snapshot.hasChain("filter", "ow_LAN"));
+        assertEquals("DROP", snapshot.getPolicy("filter", "OUTPUT"));
+        assertNull(snapshot.getPolicy("filter", "ow_OUTPUT"));
+        assertEquals(4, snapshot.getRules("filter", "ow_OUTPUT").size());
+        assertTrue(snapshot.getRules("filter", "ow_LAN").isEmpty());
+    }
+
+    @Test
+    public void containsMatchesListedForm() {
+        // option order, implicit netmask
+        assertTrue(snapshot.contains("-C ow_OUTPUT -o lo -d 127.0.0.1 -j RETURN"));
+        // implicit "-m tcp", comments
+        assertTrue(snapshot.contains("-C ow_OUTPUT -p tcp --dport 9040 -j ACCEPT"));
+        // state order
+        assertTrue(snapshot.contains("-C ow_OUTPUT -m conntrack --ctstate ESTABLISHED,RELATED -j ACCEPT"));
+        // default REJECT type
+        assertTrue(snapshot.contains("-C ow_OUTPUT -m owner --uid-owner 10001 -j REJECT"));
+
+        assertFalse(snapshot.contains("-C ow_OUTPUT -p tcp --dport 9050 -j ACCEPT"));
+        assertFalse(snapshot.contains("-t nat -C ow_OUTPUT -o lo -d 127.0.0.1 -j RETURN"));
+    }
+
+    @Test
+    public void indexOfAndFind() {
+        assertEquals(0, snapshot.indexOf("-A ow_OUTPUT -d 127.0.0.1 -o lo -j RETURN"));
+        assertEquals(2, snapshot.indexOf("-I ow_OUTPUT 1 -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT"));
+        assertEquals(-1, snapshot.indexOf("-A ow_LAN -j ACCEPT"));
+        assertEquals("-p tcp -m tcp --dport 9040 -m comment --comment \"orWall tor\" -j ACCEPT",
+                snapshot.find("-D ow_OUTPUT -p tcp --dport 9040 -j ACCEPT"));
+    }
+
+    @Test
+    public void isApplied() {
+        assertTrue(snapshot.isApplied("-N ow_LAN"));
+        assertFalse(snapshot.isApplied("-N ow_TOR"));
+        assertTrue(snapshot.isApplied("-X ow_TOR"));
+        assertFalse(snapshot.isApplied("-X ow_LAN"));
+        assertTrue(snapshot.isApplied("-F ow_LAN"));
+        assertFalse(snapshot.isApplied("-F ow_OUTPUT"));
+        assertTrue(snapshot.isApplied("-P OUTPUT DROP"));
+        assertFalse(snapshot.isApplied("-P OUTPUT ACCEPT"));
+        assertTrue(snapshot.isApplied("-A OUTPUT -j ow_OUTPUT"));
+        assertFalse(snapshot.isApplied("-D OUTPUT -j ow_OUTPUT"));
+        assertTrue(snapshot.isApplied("-D OUTPUT -j ow_LAN"));
+        assertFalse(snapshot.isApplied("-E ow_LAN ow_LAN_next"));
+        assertFalse(snapshot.isApplied("-R OUTPUT 1 -j ow_OUTPUT"));
+    }
+
+    @Test
+    public void isAppliedRename() {
+        IptablesSnapshot renamed = new IptablesSnapshot();
+        renamed.parse("filter", "-P OUTPUT ACCEPT\n-N ow_LAN_next\n");
+        assertTrue(renamed.isApplied("-E ow_LAN ow_LAN_next"));
+    }
+
+    @Test
+    public void canonical() {
+        assertEquals(
+                IptablesSnapshot.canonical(Arrays.asList("!", "-o", "lo", "-j", "ACCEPT")),
+                IptablesSnapshot.canonical(Arrays.asList("-o", "!", "lo", "-j", "ACCEPT")));
+        assertEquals(
+                IptablesSnapshot.canonical(Arrays.asList("-d", "10.0.0.0/8", "-j", "ACCEPT")),
+                IptablesSnapshot.canonical(Arrays.asList("-j", "ACCEPT", "-m", "comment", "--comment", "LAN", "-d", "10.0.0.0/8")));
+        assertFalse(IptablesSnapshot.canonical(Arrays.asList("-d", "10.0.0.1", "-j", "ACCEPT")).equals(
+                IptablesSnapshot.canonical(Arrays.asList("!", "-d", "10.0.0.1", "-j", "ACCEPT"))));
+    }
+
+    @Test
+    public void canonicalOwnerRanges() {
+        String range = IptablesSnapshot.canonical(Arrays.asList("-m", "owner", "--uid-owner", "10001-10005", "-j", "ACCEPT"));
+        assertEquals(range, IptablesSnapshot.canonical(Arrays.asList("-m", "owner", "--uid-owner", "10001:10005", "-j", "ACCEPT")));
+        assertEquals(
+                IptablesSnapshot.canonical(Arrays.asList("--uid-owner", "10001", "-j", "ACCEPT")),
+                IptablesSnapshot.canonical(Arrays.asList("--uid-owner", "10001-10001", "-j", "ACCEPT")));
+
+        IptablesSnapshot listed = new IptablesSnapshot();
+        listed.parse("filter", "-N ow_TOR\n-A ow_TOR -m owner --uid-owner 10001:10005 -j ACCEPT\n");
+        assertTrue(listed.contains("-A ow_TOR -m owner --uid-owner 10001-10005 -j ACCEPT"));
+        assertFalse(listed.contains("-A ow_TOR -m owner --uid-owner 10001-10004 -j ACCEPT"));
+    }
+
+    @Test
+    public void tokenizeKeepsQuotedStrings() {
+        assertEquals(Arrays.asList("-m", "comment", "--comment", "orWall tor", "-j", "ACCEPT"),
+                IptablesSnapshot.tokenize("-m comment --comment \"orWall tor\"  -j ACCEPT"));
+    }
+
+    @Test
+    public void cacheDropsSnapshotsStartedBeforeInvalidate() {
+        IptablesSnapshot.invalidate();
+        long started = IptablesSnapshot.getGeneration();
+        IptablesSnapshot.invalidate();
+        assertFalse(IptablesSnapshot.putCached("iptables", snapshot, started));
+        assertNull(IptablesSnapshot.getCached("iptables"));
+
+        started = IptablesSnapshot.getGeneration();
+        assertTrue(IptablesSnapshot.putCached("iptables", snapshot, started));
+        assertSame(snapshot, IptablesSnapshot.getCached("iptables"));
+        IptablesSnapshot.invalidate();
+        assertNull(IptablesSnapshot.getCached("iptables"));
+    }
+}
@@ -0,0 +1,81 @@
+package org.ethack.orwall.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RuleSetTest {
+    private final static String TOR_10001 = "-A ow_TOR -m owner --uid-owner 10001 -j ACCEPT";
+    private final static String TOR_10002 = "-A ow_TOR -m owner --uid-owner 10002 -j ACCEPT";
+    private final static String NAT_10001 = "-t nat -A ow_TOR -m owner --uid-owner 10001 -p tcp -j REDIRECT --to-ports 9040";
+
+    private static IptablesSnapshot snapshot(final String filter, final String nat) {
+        IptablesSnapshot snapshot = new IptablesSnapshot();
+        snapshot.parse("filter", filter);
+        snapshot.parse("nat", nat);
+        return snapshot;
+    }
+
+    @Test
+    public void keyIgnoresVerbPositionAndListingForm() {
+        assertEquals(RuleSet.key(TOR_10001), RuleSet.key("-I ow_TOR 3 -m owner --uid-owner 10001 -j ACCEPT"));
+        assertEquals(RuleSet.key(TOR_10001), RuleSet.key("-t filter -A ow_TOR -j ACCEPT -m owner --uid-owner 10001"));
+        assertFalse(RuleSet.key(TOR_10001).equals(RuleSet.key("-t nat -A ow_TOR -m owner --uid-owner 10001 -j ACCEPT")));
+        assertNull(RuleSet.key("-A"));
+    }
+
+    @Test
+    public void addIgnoresDuplicates() {
+        RuleSet rules = new RuleSet();
+        rules.add(TOR_10001);
+        rules.add("-I ow_TOR -m owner --uid-owner 10001 -j ACCEPT");
+        assertEquals(1, rules.size());
+        assertTrue(rules.contains("-D ow_TOR -m owner --uid-owner 10001 -j ACCEPT"));
+    }
+
+    @Test
+    public void diffDeletesUnwantedThenAddsMissing() {
+        RuleSet wanted = new RuleSet();
+        wanted.add(TOR_10002);
+        wanted.add(NAT_10001);
+
+        RuleSet managed = new RuleSet();
+        managed.add(TOR_10001);
+        managed.add(TOR_10002);
+        managed.add(NAT_10001);
+
+        IptablesSnapshot current = snapshot(
+                "-N ow_TOR\n-A ow_TOR -m owner --uid-owner 10001 -m comment --comment \"app\" -j ACCEPT\n",
+                "-N ow_TOR\n-A ow_TOR -p tcp -m owner --uid-owner 10001 -j REDIRECT --to-ports 9040\n");
+
+        assertEquals(Arrays.asList(
+                        // deletion uses the listed spec, comment included
+                        "-t filter -D ow_TOR -m owner --uid-owner 10001 -m comment --comment \"app\" -j ACCEPT",
+                        TOR_10002),
+                wanted.diff(managed, current));
+    }
+
+    @Test
+    public void diffLeavesUnmanagedRulesAlone() {
+        RuleSet wanted = new RuleSet();
+        RuleSet managed = new RuleSet();
+        managed.add(TOR_10002);
+
+        IptablesSnapshot current = snapshot("-N ow_TOR\n" + TOR_10001 + "\n", "");
+        assertEquals(Collections.<String>emptyList(), wanted.diff(managed, current));
+    }
+
+    @Test
+    public void diffOfAppliedSetIsEmpty() {
+        RuleSet wanted = new RuleSet();
+        wanted.add(TOR_10001);
+        IptablesSnapshot current = snapshot("-N ow_TOR\n" + TOR_10001 + "\n", "");
+        assertTrue(wanted.diff(wanted, current).isEmpty());
+    }
+}
@@ -0,0 +1,53 @@
+package org.ethack.orwall.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UidRangesTest {
+
+    @Test
+    public void mergesContiguousUids() {
+        assertEquals(Arrays.asList("10001-10003", "10005", "10007-10008"),
+                UidRanges.compress(Arrays.asList(10008L, 10001L, 10002L, 10005L, 10003L, 10007L), true));
+    }
+
+    @Test
+    public void keepsSingleUidsWithoutRangeSupport() {
+        assertEquals(Arrays.asList("10001", "10002", "10003"),
+                UidRanges.compress(Arrays.asList(10003L, 10001L, 10002L), false));
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        assertEquals(Arrays.asList("10001-10002"),
+                UidRanges.compress(Arrays.asList(10001L, 10002L, 10001L), true));
+    }
+
+    @Test
+    public void empty() {
+        assertTrue(UidRanges.compress(Collections.<Long>emptyList(), true).isEmpty());
+    }
+
+    @Test
+    public void covers() {
+        String range = "-A ow_TOR -m owner --uid-owner 10001-10003 -j ACCEPT";
+        assertTrue(UidRanges.covers(range, 10001));
+        assertTrue(UidRanges.covers(range, 10003));
+        assertFalse(UidRanges.covers(range, 10004));
+        assertTrue(UidRanges.covers("-t nat -D ow_TOR -m owner --uid-owner 10005 -j REDIRECT", 10005));
+        assertFalse(UidRanges.covers("-t nat -D ow_TOR -m owner --uid-owner 10005 -j REDIRECT", 1000));
+        assertFalse(UidRanges.covers("-A ow_OUTPUT -o lo -j ow_LOCAL", 10001));
+    }
+
+    @Test
+    public void isRange() {
+        assertTrue(UidRanges.isRange("10001-10003"));
+        assertFalse(UidRanges.isRange("10001"));
+    }
+}
@@ -0,0 +1,70 @@
+package org.sufficientlysecure.rootcommands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reference counting of the shared shell, with a plain sh instead of su
+ */
+public class SharedShellTest {
+    private final static int IDLE_TIMEOUT = 100;
+
+    @Before
+    public void setUp() {
+        SharedShell.setStarter(new SharedShell.Starter() {
+            @Override
+            public Shell start() throws IOException {
+                return Shell.startShell();
+            }
+        });
+        SharedShell.setIdleTimeout(IDLE_TIMEOUT);
+    }
+
+    @After
+    public void tearDown() {
+        SharedShell.close();
+        SharedShell.setIdleTimeout(SharedShell.DEFAULT_IDLE_TIMEOUT);
+    }
+
+    private static boolean waitForClose() throws InterruptedException {
+        for (int i = 0; i < 100 && SharedShell.isAlive(); i++) {
+            Thread.sleep(IDLE_TIMEOUT / 2);
+        }
+        return !SharedShell.isAlive();
+    }
+
+    @Test
+    public void closedOnceIdle() throws Exception {
+        Shell first = SharedShell.acquire();
+        Shell second = SharedShell.acquire();
+        SharedShell.release(first);
+        Thread.sleep(IDLE_TIMEOUT * 3);
+        assertTrue("closed while still held", SharedShell.isAlive());
+
+        SharedShell.release(second);
+        assertTrue(waitForClose());
+    }
+
+    @Test
+    public void respawnDoesNotLeakReferences() throws Exception {
+        Shell dead = SharedShell.acquire();
+        dead.close();
+        assertFalse(SharedShell.isAlive());
+
+        Shell respawned = SharedShell.acquire();
+        assertNotSame(dead, respawned);
+        SharedShell.release(dead);
+        SharedShell.release(respawned);
+
+        assertTrue("idle shell never closed", waitForClose());
+        assertEquals(0, SharedShell.getReferences());
+    }
+}